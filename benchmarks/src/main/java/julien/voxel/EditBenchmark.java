@@ -0,0 +1,129 @@
+package julien.voxel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A burst of block edits: a sphere of RADIUS blocks, about 9000 edits, cleared and filled again in turn next to
+ * the spawn point of a ChunkManager drawing to a RecordingBackend. setBlocks is only the setBlock calls on the
+ * GL thread. setAndSettle also runs frames until every edited chunk is committed, remeshed and uploaded under
+ * the GUI.editBudget per frame budget, and counts those frames. The game used to run the same burst on the B key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class EditBenchmark {
+	/** Radius of the sphere, in blocks */
+	private static final int RADIUS = 13;
+	/** Block type the sphere is filled with */
+	private static final byte FILL = 1;
+	/** Longest a burst gets to settle, in milliseconds, before the run fails */
+	private static final long SETTLE_TIMEOUT = 60000;
+	@Param({"4", "8"})
+	public int drawDistance;
+	private ChunkManager manager;
+	/** Center of the sphere, in blocks */
+	private int cx, cy, cz;
+	/** Clear the sphere next, or fill it */
+	private boolean clear = true;
+
+	/** Frames run to settle bursts, and bursts, per iteration. Frames per burst is one over the other */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Frames {
+		public long frames;
+		public long bursts;
+
+		@Setup(Level.Iteration)
+		public void clear(){
+			frames = 0;
+			bursts = 0;
+		}
+	}
+
+	/** Settles the chunks a setBlocks call dirtied, outside the measured time */
+	@State(Scope.Thread)
+	public static class Dirty {
+		@TearDown(Level.Invocation)
+		public void settle(EditBenchmark benchmark){
+			benchmark.settle();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup(){
+		GUI.drawDistance = drawDistance; // before anything reads it
+		manager = new ChunkManager(new RecordingBackend(), null);
+		settle();
+		cx = ChunkManager.chunkSize/2;
+		cz = ChunkManager.chunkSize/2;
+		cy = 0;
+		while(cy < ChunkManager.chunkHeight*ChunkManager.chunkLayers && manager.getBlock(cx, cy, cz) != 0){
+			cy++; // centered on the surface, so it both digs and clears air
+		}
+	}
+
+	/** The edits alone. The chunks they dirtied are settled between calls */
+	@Benchmark
+	public int setBlocks(Dirty dirty){
+		return burst();
+	}
+
+	/** The edits, then frames until the manager is idle again */
+	@Benchmark
+	public int setAndSettle(Frames counter){
+		int edits = burst();
+		counter.frames += settle();
+		counter.bursts++;
+		return edits;
+	}
+
+	/** Clears or fills the sphere, and returns how many blocks changed */
+	private int burst(){
+		byte type = clear ? 0 : FILL;
+		clear = !clear;
+		int edits = 0;
+		for(int x = -RADIUS; x <= RADIUS; x++){
+			for(int y = -RADIUS; y <= RADIUS; y++){
+				for(int z = -RADIUS; z <= RADIUS; z++){
+					if(x*x + y*y + z*z <= RADIUS*RADIUS && manager.setBlock(cx+x, cy+y, cz+z, type)){
+						edits++;
+					}
+				}
+			}
+		}
+		return edits;
+	}
+
+	/** Runs the manager's per frame work until nothing is left, and returns the number of frames */
+	private int settle(){
+		long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT;
+		int frames = 0;
+		while(!manager.isIdle()){
+			manager.loadNext(GUI.updates);
+			frames++;
+			if(System.currentTimeMillis() > deadline){
+				throw new IllegalStateException("Chunk manager still busy after " + SETTLE_TIMEOUT + " ms");
+			}
+			Thread.yield(); // let the workers get ahead
+		}
+		return frames;
+	}
+}
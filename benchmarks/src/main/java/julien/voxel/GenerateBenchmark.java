@@ -0,0 +1,59 @@
+package julien.voxel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Filling a chunk column with blocks, as a worker does for each new column: heightmap, terrain function,
+ * palette packing, and the uniform chunk shortcut. Columns are taken from a square much larger than the
+ * heightmap cache, so every column computes its heights again like a newly visited one would.
+ * The chunk size is read once when the classes load, which JMH does in a separate fork per parameter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class GenerateBenchmark {
+	/** Columns across the square the benchmark walks */
+	private static final int AREA = 64;
+	@Param({"8", "16", "32"})
+	public int chunkSize;
+	@Param({"false", "true"})
+	public boolean fourD;
+	/** Index of the next column */
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		GUI.chunkSize = chunkSize; // before anything reads it
+		GUI.fourD = fourD;
+	}
+
+	/** Generates every layer of the next column */
+	@Benchmark
+	public BlockStorage generateColumn(){
+		int x = next % AREA, z = next / AREA % AREA;
+		next++;
+		BlockStorage last = null;
+		for(int y = 0; y < ChunkManager.chunkLayers; y++){
+			Chunk c = new Chunk(x, y, z);
+			c.generate(0);
+			last = c.getBlocks();
+		}
+		return last;
+	}
+}
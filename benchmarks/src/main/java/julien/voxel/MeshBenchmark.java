@@ -0,0 +1,84 @@
+package julien.voxel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chunk.buildMesh on surface chunks with their neighbors linked: face culling against the chunk and its
+ * neighbors, vertex emission, and the side links for cave culling. One call meshes one chunk.
+ * Meshes are thrown away instead of uploaded, nothing here needs a GL context.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class MeshBenchmark {
+	/** Chunk columns across the patch, the ones on its edge are only there as neighbors */
+	private static final int PATCH = 6;
+	@Param({"8", "16", "32"})
+	public int chunkSize;
+	/** perFace draws each visible face, greedy merges them, lod1 and lod2 mesh cells of 2 and 4 blocks */
+	@Param({"perFace", "greedy", "lod1", "lod2"})
+	public String mesher;
+	/** Chunks meshed in turn, the inner columns of the patch in the layers where the surface usually is */
+	private Chunk[] meshed;
+	/** Index of the next chunk */
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		GUI.chunkSize = chunkSize; // before anything reads it
+		GUI.greedy = !mesher.equals("perFace");
+		int lod = mesher.startsWith("lod") ? Integer.parseInt(mesher.substring(3)) : 0;
+		Chunk[][][] patch = new Chunk[PATCH][ChunkManager.chunkLayers][PATCH];
+		for(int x = 0; x < PATCH; x++){
+			for(int y = 0; y < ChunkManager.chunkLayers; y++){
+				for(int z = 0; z < PATCH; z++){
+					patch[x][y][z] = new Chunk(x, y, z);
+					patch[x][y][z].generate(0);
+					patch[x][y][z].setLod(lod);
+				}
+			}
+		}
+		meshed = new Chunk[(PATCH-2)*2*(PATCH-2)];
+		int n = 0;
+		for(int x = 0; x < PATCH; x++){
+			for(int y = 0; y < ChunkManager.chunkLayers; y++){
+				for(int z = 0; z < PATCH; z++){
+					for(int side = 0; side < 6; side++){
+						int nx = x + Chunk.OFFSET[side][0], ny = y + Chunk.OFFSET[side][1], nz = z + Chunk.OFFSET[side][2];
+						if(nx >= 0 && ny >= 0 && nz >= 0 && nx < PATCH && ny < ChunkManager.chunkLayers && nz < PATCH){
+							patch[x][y][z].setNeighbor(side, patch[nx][ny][nz]);
+						}
+					}
+					if(x > 0 && z > 0 && x < PATCH-1 && z < PATCH-1 && (y == 1 || y == 2)){
+						meshed[n++] = patch[x][y][z];
+					}
+				}
+			}
+		}
+	}
+
+	/** Meshes the next chunk */
+	@Benchmark
+	public int buildMesh(){
+		Chunk c = meshed[next++ % meshed.length];
+		c.buildMesh();
+		c.discardMesh();
+		return c.getVerticesSaved();
+	}
+}
@@ -0,0 +1,94 @@
+package julien.voxel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SimplexNoise in 2, 3 and 4 dimensions, one sample at a time and with the grid methods.
+ * Every benchmark takes SAMPLES samples, so the scores are nanoseconds per sample and compare across dimensions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class NoiseBenchmark {
+	/** Samples per benchmark call: 64x64 in 2D, 16x16x16 in 3D and 4D */
+	private static final int SAMPLES = 4096;
+	/** Distance between samples, about what the terrain uses per block */
+	private static final double STEP = 1.0/30;
+	/** Output of the grid methods */
+	private final double[] out = new double[SAMPLES];
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public double scalar2D(){
+		double sum = 0;
+		for(int x = 0; x < 64; x++){
+			for(int y = 0; y < 64; y++){
+				sum += SimplexNoise.noise(x*STEP, y*STEP);
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public double scalar3D(){
+		double sum = 0;
+		for(int x = 0; x < 16; x++){
+			for(int y = 0; y < 16; y++){
+				for(int z = 0; z < 16; z++){
+					sum += SimplexNoise.noise(x*STEP, y*STEP, z*STEP);
+				}
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public double scalar4D(){
+		double sum = 0;
+		for(int x = 0; x < 16; x++){
+			for(int y = 0; y < 16; y++){
+				for(int z = 0; z < 16; z++){
+					sum += SimplexNoise.noise(x*STEP, y*STEP, z*STEP, 0.5);
+				}
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public double[] grid2D(){
+		SimplexNoise.noise(out, 0, 0, 0, STEP, STEP, 64, 64);
+		return out;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public double[] grid3D(){
+		SimplexNoise.noise(out, 0, 0, 0, 0, STEP, STEP, STEP, 16, 16, 16);
+		return out;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public double[] grid4D(){
+		SimplexNoise.noise(out, 0, 0, 0, 0, 0.5, STEP, STEP, STEP, 0, 16, 16, 16, 1);
+		return out;
+	}
+}
@@ -0,0 +1,127 @@
+package julien.voxel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Streams thousands of chunks through a ChunkManager drawing to a RecordingBackend, so everything but the GL
+ * calls themselves runs: generating and meshing on the workers, uploading into the arena, drawing and unloading.
+ * Each operation is one frame as Render.draw does it, with the camera flying along a diagonal. The score is
+ * frames per second, uploads and uploadedBytes are per second too. After the run the camera stops, the manager
+ * catches up, and the trial fails if any arena slot or buffer leaked, or if any buffer survives releaseBuffers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class SoakBenchmark {
+	/** Blocks the camera moves each frame, along x and z */
+	private static final float SPEED = 0.5f;
+	/** Longest the manager gets to catch up, in milliseconds, before the trial fails */
+	private static final long DRAIN_TIMEOUT = 60000;
+	@Param({"8", "16"})
+	public int drawDistance;
+	private RecordingBackend backend;
+	private ChunkManager manager;
+	private Frustum frustum = new Frustum();
+	/** Camera position in blocks */
+	private float[] location = {8, 40, 8};
+	/** View direction, as in Render.rChange */
+	private float yaw = (float) (Math.PI/4), pitch = -0.3f;
+	private int tickCount = 0;
+
+	/** Backend counters per second */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Uploads {
+		public long uploads;
+		public long uploadedBytes;
+
+		@Setup(Level.Iteration)
+		public void clear(){
+			uploads = 0;
+			uploadedBytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup(){
+		GUI.drawDistance = drawDistance; // before anything reads it
+		backend = new RecordingBackend();
+		manager = new ChunkManager(backend, null);
+		drain(); // the initial chunks
+	}
+
+	/** One frame: draw, move, update the streamed area, upload and unload */
+	@Benchmark
+	public int frame(Uploads counters){
+		long uploads = backend.getUploads(), bytes = backend.getUploadedBytes();
+		location[0] += SPEED;
+		location[2] += SPEED;
+		step();
+		counters.uploads += backend.getUploads() - uploads;
+		counters.uploadedBytes += backend.getUploadedBytes() - bytes;
+		return manager.getDrawn();
+	}
+
+	@TearDown(Level.Trial)
+	public void check(){
+		drain();
+		System.out.println();
+		System.out.println(backend.report());
+		System.out.println(manager.bufferReport());
+		int leaked = manager.getLeaked();
+		if(leaked != 0 || backend.getLiveBytes() != manager.getVboBytes()){
+			throw new IllegalStateException(leaked + " arena slots leaked, backend holds " + backend.getLiveBytes()
+					+ " bytes of buffers, the recycler counts " + manager.getVboBytes());
+		}
+		manager.releaseBuffers(); // as on exit, which must leave no buffer behind
+		if(backend.getLiveBuffers() != 0){
+			throw new IllegalStateException(backend.getLiveBuffers() + " buffers left after releasing them all");
+		}
+	}
+
+	/** Runs frames in place until nothing is left to build, upload or unload */
+	private void drain(){
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		do {
+			step();
+			if(System.currentTimeMillis() > deadline){
+				throw new IllegalStateException("Chunk manager still busy after " + DRAIN_TIMEOUT + " ms");
+			}
+			Thread.yield(); // let the workers get ahead
+		} while(!manager.isIdle());
+	}
+
+	/** The chunk manager calls of Render.draw */
+	private void step(){
+		frustum.update(location, yaw, pitch, 45.0, 1.44f, 0.1, 1000.0);
+		manager.render(frustum);
+		if(tickCount%10==0){
+			manager.updateUnload(location[0], location[2]);
+		} else if(tickCount%10==5){
+			manager.updateLoad(location[0], location[2]);
+		} else if(tickCount%10==7){
+			manager.prioritize(location, yaw);
+		}
+		manager.loadNext(GUI.updates);
+		manager.unloadNext(3*GUI.updates);
+		tickCount++;
+	}
+}
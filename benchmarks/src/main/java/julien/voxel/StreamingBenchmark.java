@@ -0,0 +1,55 @@
+package julien.voxel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The bookkeeping ChunkManager does when the camera crosses into another chunk: finding the strips that left
+ * and entered the draw distance, queueing the new chunks and reprioritizing the load queue. Nothing is built,
+ * so this is only the cost on the GL thread. The camera steps back and forth along x, so the queue stays the
+ * same size however long it runs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class StreamingBenchmark {
+	@Param({"4", "8", "16", "32"})
+	public int drawDistance;
+	private ChunkManager manager;
+	/** Camera position in blocks */
+	private float[] location = {8, 40, 8};
+	/** Direction of the next step along x */
+	private int step = 1;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		GUI.drawDistance = drawDistance; // before anything reads it
+		manager = new ChunkManager(new RecordingBackend(), null);
+	}
+
+	/** Moves the camera one chunk and updates the load and unload areas and the queue order */
+	@Benchmark
+	public int crossChunk(){
+		location[0] += step*ChunkManager.chunkSize*ChunkManager.len;
+		step = -step;
+		manager.updateUnload(location[0], location[2]);
+		manager.updateLoad(location[0], location[2]);
+		manager.prioritize(location, 0);
+		return manager.getQueued();
+	}
+}
@@ -0,0 +1,216 @@
+package julien.voxel;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The blocks of one chunk, compressed with a palette. Each distinct block type in the chunk gets a palette
+ * entry, and each block stores only its palette index, packed 1, 2, 4 or 8 bits to a long depending on how
+ * many types there are. A chunk of a single type stores no indices at all.
+ * Blocks are numbered (x*chunkHeight + y)*chunkSize + z, so z is contiguous like the old [x][y][z] arrays.
+ * Immutable: a chunk that changes gets a new BlockStorage, so other threads can read it without locking,
+ * and chunks with the same blocks can share one (see AIR and ChunkManager.uniformBlocks).
+ */
+public class BlockStorage {
+	/** Number of blocks across a chunk is */
+	private static final int chunkSize = ChunkManager.chunkSize;
+	/** Number of blocks up a chunk is */
+	private static final int chunkHeight = ChunkManager.chunkHeight;
+	/** Number of blocks in a chunk */
+	public static final int VOLUME = chunkSize*chunkHeight*chunkSize;
+	/** A chunk of nothing but air, shared by every such chunk */
+	public static final BlockStorage AIR = shared(new byte[VOLUME]);
+	/** Block type of each palette index */
+	private final byte[] palette;
+	/** Bits per block: 0 when the palette has one entry, otherwise 1, 2, 4 or 8 so no index straddles two longs */
+	private final int bits;
+	/** (1 << bits) - 1 */
+	private final int mask;
+	/** Packed palette indices, null when bits is 0 */
+	private final long[] data;
+	/** Is every block active */
+	private final boolean solid;
+	/** Is every block air */
+	private final boolean air;
+	/** Is this one instance used by many chunks */
+	private final boolean shared;
+
+	private BlockStorage(byte[] palette, int bits, long[] data, boolean shared){
+		this.palette = palette;
+		this.bits = bits;
+		this.mask = (1 << bits) - 1;
+		this.data = data;
+		this.shared = shared;
+		boolean anyActive = false, anyAir = false;
+		for(byte b : palette){
+			if(BlockType.isActive(b)){
+				anyActive = true;
+			} else {
+				anyAir = true;
+			}
+		}
+		solid = !anyAir;
+		air = !anyActive;
+	}
+
+	/** Compresses VOLUME blocks, indexed as in index(x, y, z) */
+	public static BlockStorage pack(byte[] blocks){
+		return pack(blocks, false);
+	}
+
+	/** Compresses blocks into an instance meant to be used by many chunks. Its memory is counted once, not per chunk */
+	public static BlockStorage shared(byte[] blocks){
+		return pack(blocks, true);
+	}
+
+	private static BlockStorage pack(byte[] blocks, boolean shared){
+		int[] slot = new int[256]; // palette index + 1 of each block type, 0 if not in the palette yet
+		byte[] palette = new byte[16];
+		int size = 0;
+		for(int i = 0; i < VOLUME; i++){
+			int b = blocks[i] & 0xFF;
+			if(slot[b] == 0){
+				if(size == palette.length){
+					palette = Arrays.copyOf(palette, 256);
+				}
+				palette[size++] = blocks[i];
+				slot[b] = size;
+			}
+		}
+		palette = Arrays.copyOf(palette, size);
+		int bits = size == 1 ? 0 : size <= 2 ? 1 : size <= 4 ? 2 : size <= 16 ? 4 : 8;
+		if(bits == 0){
+			return new BlockStorage(palette, 0, null, shared);
+		}
+		long[] data = new long[(VOLUME*bits + 63)/64];
+		for(int i = 0; i < VOLUME; i++){
+			long index = slot[blocks[i] & 0xFF] - 1;
+			int bit = i*bits;
+			data[bit >>> 6] |= index << (bit & 63);
+		}
+		return new BlockStorage(palette, bits, data, shared);
+	}
+
+	/** Index of a block within the chunk */
+	public static int index(int x, int y, int z){
+		return (x*chunkHeight + y)*chunkSize + z;
+	}
+
+	/** Block type at a position within the chunk */
+	public byte get(int x, int y, int z){
+		return get(index(x, y, z));
+	}
+
+	/** Block type at an index from index(x, y, z) */
+	public byte get(int i){
+		if(bits == 0){
+			return palette[0];
+		}
+		int bit = i*bits;
+		return palette[(int) (data[bit >>> 6] >>> (bit & 63)) & mask];
+	}
+
+	/** Decompresses every block into an array of at least VOLUME, indexed as in index(x, y, z). Meshing reads
+	 * blocks many times each, so it unpacks once instead of going through get */
+	public void unpack(byte[] into){
+		if(bits == 0){
+			Arrays.fill(into, 0, VOLUME, palette[0]);
+			return;
+		}
+		int perLong = 64/bits;
+		for(int l = 0, i = 0; l < data.length; l++){
+			long word = data[l];
+			for(int k = 0; k < perLong && i < VOLUME; k++, i++){
+				into[i] = palette[(int) word & mask];
+				word >>>= bits;
+			}
+		}
+	}
+
+	/** Most bytes writeTo can take */
+	public static final int MAX_SERIALIZED = 2 + 256 + 1 + VOLUME;
+
+	/** Bytes writeTo takes for these blocks */
+	public int serializedSize(){
+		return 2 + palette.length + 1 + (data == null ? 0 : 8*data.length);
+	}
+
+	/** Writes the palette and packed indices as they are: palette size, palette, bits per block, indices */
+	public void writeTo(ByteBuffer out){
+		out.putShort((short) palette.length);
+		out.put(palette);
+		out.put((byte) bits);
+		if(data != null){
+			for(long l : data){
+				out.putLong(l);
+			}
+		}
+	}
+
+	/** Reads blocks written by writeTo, or returns null if they don't make sense for this chunk size */
+	public static BlockStorage readFrom(ByteBuffer in){
+		if(in.remaining() < 3){
+			return null;
+		}
+		int size = in.getShort();
+		if(size < 1 || size > 256 || in.remaining() < size + 1){
+			return null;
+		}
+		byte[] palette = new byte[size];
+		in.get(palette);
+		int bits = in.get();
+		int expected = size == 1 ? 0 : size <= 2 ? 1 : size <= 4 ? 2 : size <= 16 ? 4 : 8;
+		if(bits != expected){
+			return null;
+		}
+		long[] data = null;
+		if(bits > 0){
+			data = new long[(VOLUME*bits + 63)/64];
+			if(in.remaining() != 8*data.length){
+				return null;
+			}
+			for(int i = 0; i < data.length; i++){
+				data[i] = in.getLong();
+			}
+		}
+		return new BlockStorage(palette, bits, data, false);
+	}
+
+	/** Are all the blocks one type */
+	public boolean isUniform(){
+		return bits == 0;
+	}
+
+	/** Is every block active. Only faces on the chunk's border can be seen then */
+	public boolean isSolid(){
+		return solid;
+	}
+
+	/** Is every block air. There is nothing to mesh then */
+	public boolean isAir(){
+		return air;
+	}
+
+	/** Is this instance shared by many chunks */
+	public boolean isShared(){
+		return shared;
+	}
+
+	/** Number of block types in the chunk */
+	public int getPaletteSize(){
+		return palette.length;
+	}
+
+	/** Approximate heap bytes used, counting object and array headers. 0 for shared instances */
+	public long memoryBytes(){
+		if(shared){
+			return 0;
+		}
+		return 40 + (16 + palette.length) + (data == null ? 0 : 16 + 8L*data.length);
+	}
+
+	/** Approximate heap bytes of the same blocks as a byte[chunkSize][chunkHeight][chunkSize], for comparison */
+	public static long unpackedBytes(){
+		return (16 + 4L*chunkSize) + chunkSize*(16 + 4L*chunkHeight) + chunkSize*chunkHeight*(16L + chunkSize);
+	}
+}
@@ -47,6 +47,11 @@ public enum BlockType {
 		return values[random.nextInt(values.length)];
 	}
 
+	/** Is this a block type, 0 (air) up to the last BlockType? Meshes keep the type in 4 bits, next to the face's side */
+	public static boolean isValid(byte block){
+		return block >= 0 && block < values.length;
+	}
+
 	/** Will this block be drawn? */
 	public static boolean isActive(byte block){
 		return (block > 0);
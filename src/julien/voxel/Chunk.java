@@ -1,40 +1,155 @@
 package julien.voxel;
 
-import java.nio.FloatBuffer;
-import com.jogamp.common.nio.Buffers;
-
-import javax.media.opengl.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /** Class for an individual chunk. Each chunk holds a 3x3 set of Blocks, and builds a mesh/renders them.
  * Default size of a chunk is 16 blocks across, but it can be easily changed.
- * Most optimizations are within Chunk's createMesh/update methods (not drawing unseen faces).
+ * Most optimizations are within Chunk's createMesh methods (not drawing unseen faces).
  * Chunk renders blocks using Vertex Buffer Objects, which must be updated when a chunk is changed.
+ * Blocks are changed with setBlock and commitEdits, after which the chunk needs a new mesh.
  * While a chunk is mostly self-contained, it should be managed by a chunk manager.
  * @author Julien Brenneck
  * @version December 15, 2013 */
 public class Chunk {
 	/** Is this chunk active */
 	private boolean active;
-	/** Stores all the blocks in the chunk */
-	private byte[][][] blocks = new byte[chunkSize][chunkHeight][chunkSize];
-	/** Holds Buffer IDs assigned by openGL */
-	private int buffer[] = new int[3];
-	/** Number of vertices in the chunk */
+	/** Stores all the blocks in the chunk, palette compressed. Null until generated. Replaced, never modified,
+	 * since neighbors read it from other threads while they mesh */
+	private volatile BlockStorage blocks;
+	/** Unpacked blocks with the edits from setBlock, null when there are none. Only touched on the GL thread */
+	private byte[] edited;
+	/** Border layers the edits touched, one bit per side */
+	private int editedSides;
+	/** Has the chunk been edited since it was generated or loaded, so it has to be saved */
+	private boolean modified;
+	/** The blocks unpacked into the building thread's flatBlocks, only while buildMesh runs */
+	private byte[] meshBlocks;
+	/** Are the blocks being meshed all active, so only faces on the chunk's border can show */
+	private boolean meshSolid;
+	/** Level of detail the next buildMesh meshes at: 0 is every block, above that cells of 2^lod blocks across
+	 * stand in for the blocks. Set by ChunkManager on the GL thread, neighbors meshing on workers read it */
+	private volatile int lod;
+	/** Per side, is the neighbor solid all through, while createCoarse runs */
+	private boolean[] cellCovered;
+	/** Per side, the neighbor's blocks if it's meshed at the same level, so border cells can be culled against
+	 * its cells. Null where there are skirts instead. Only while createCoarse runs */
+	private BlockStorage[] cellNeighbors;
+	/** Level of detail of vertexData */
+	private int meshLod;
+	/** Level of detail of the uploaded mesh */
+	private int drawnLod;
+	/** Position along the fourth axis the blocks were generated at, 0 unless GUI.fourD */
+	private int w;
+	/** w that predicted sides of vertexData were meshed against */
+	private int meshW;
+	/** w that predicted sides of the uploaded mesh were meshed against */
+	private int predictedW;
+	/** Blocks from reslice waiting for applySlice, null if they match the current blocks */
+	private BlockStorage pendingBlocks;
+	/** w that reslice generated at */
+	private int pendingW;
+	/** Sides whose border layer differs between the current blocks and pendingBlocks, one bit per side */
+	private int pendingSides;
+	/** Per thread buffer of one chunk's blocks, indexed as in BlockStorage.index. Generation fills it before packing,
+	 * meshing unpacks into it */
+	private static final ThreadLocal<byte[]> flatBlocks = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BlockStorage.VOLUME];
+		}
+	};
+	/** Per thread flags of the blocks sideLinks' flood fill has reached */
+	private static final ThreadLocal<boolean[]> floodSeen = new ThreadLocal<boolean[]>() {
+		@Override
+		protected boolean[] initialValue() {
+			return new boolean[BlockStorage.VOLUME];
+		}
+	};
+	/** Per thread stack of blocks sideLinks' flood fill has yet to visit */
+	private static final ThreadLocal<int[]> floodStack = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[BlockStorage.VOLUME];
+		}
+	};
+	/** Per thread scratch for createCoarse, so meshing at a level of detail allocates nothing */
+	private static final ThreadLocal<CoarseScratch> coarseScratch = new ThreadLocal<CoarseScratch>() {
+		@Override
+		protected CoarseScratch initialValue() {
+			return new CoarseScratch();
+		}
+	};
+	/** Per thread buffer for the noise of one chunk, filled by SimplexNoise's grid methods */
+	private static final ThreadLocal<double[]> sliceNoise = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[chunkSize*chunkHeight*chunkSize];
+		}
+	};
+	/** The chunk's share of its region's Vertex Buffers, null if the chunk has none */
+	private MeshArena.Slot slot;
+	/** Added to every vertex position: where the chunk starts within its MeshArena region, in blocks */
+	private final int[] regionOffset = new int[3];
+	/** Number of vertices in the chunk's uploaded mesh */
 	private int vertexCount;
-	/** Size of each block */
-	private final float len = ChunkManager.len;
-	/** Buffer for vertices */
-	private FloatBuffer vertexData;
-	/** Buffer for normals */
-	private FloatBuffer normalData;
-	/** Buffer for colors */
-	private FloatBuffer colorsData;
+	/** Interleaved vertex data built off the GL thread, waiting to be uploaded. See VERTEX_SIZE.
+	 * While building this is the thread's scratch buffer, afterwards an exactly sized buffer from MeshBufferPool */
+	private ByteBuffer vertexData;
+	/** Number of vertices in vertexData */
+	private int meshCount;
+	/** Has buildMesh finished a mesh that upload hasn't taken yet. vertexData is null if it has no vertices */
+	private boolean meshReady;
+	/** Did vertexData come from MeshBufferPool, so it goes back there. A snapshot's mesh is part of a mapped file */
+	private boolean meshPooled;
+	/** Bytes per vertex: x, y, z relative to the corner of the chunk's MeshArena region (so y is from the bottom
+	 * of the world), then the side in the high 4 bits and the BlockType in the low 4 bits. Decoded to position,
+	 * normal and color by ChunkShader. Requires chunkLayers*chunkHeight <= 255 */
+	public static final int VERTEX_SIZE = 4;
 	/** Number of blocks across a chunk is */
 	public static final int chunkSize = ChunkManager.chunkSize;
 	/** Number of blocks across a chunk is */
 	public static final int chunkHeight = ChunkManager.chunkHeight;
 	/** Chunk position: Assigned by chunk manager */
 	public int[] pos = new int[3];
+	/** Loaded neighboring chunks, indexed by side. Null where the neighbor isn't loaded.
+	 * Replaced rather than modified, so a worker meshing this chunk always sees a consistent set */
+	private volatile Chunk[] neighbors = new Chunk[6];
+	/** Sides of the uploaded mesh that were meshed against the terrain function because the neighbor wasn't loaded yet */
+	private boolean[] predicted = new boolean[6];
+	/** Sides of vertexData that were meshed against the terrain function */
+	private boolean[] meshPredicted = new boolean[6];
+	/** Sides whose layer of blocks is exactly what the terrain function generates there */
+	private boolean[] terrainBorder = new boolean[6];
+	/** Vertices greedy meshing saved over drawing every face separately */
+	private int verticesSaved;
+	/** Every pair of sides connected, see sideLinks */
+	public static final long ALL_LINKS = (1L << 36) - 1;
+	/** Pairs of sides that see each other through air in the blocks of the uploaded mesh: bit a*6 + b is set
+	 * (for both orders) when air touching side a is connected to air touching side b. Until a mesh is
+	 * uploaded every pair is, so nothing is hidden behind a chunk that hasn't been built */
+	private long links = ALL_LINKS;
+	/** sideLinks of the blocks vertexData was meshed from */
+	private long meshLinks;
+	/** Frame the visibility search in ChunkManager.render last reached this chunk */
+	int visitFrame = -1;
+	/** Side the search came in through, -1 for the chunk it started from */
+	int visitFrom;
+	/** Directions the search moved in to get here, one bit per side. It never turns back against them */
+	int visitDirs;
+	/** Direction of each side: top, bottom, back, front, left, right. Doubles as the side's normal */
+	static final int[][] OFFSET = {{0,1,0}, {0,-1,0}, {0,0,-1}, {0,0,1}, {-1,0,0}, {1,0,0}};
+	/** Per side, the axis the face points along followed by the two axes spanning the face */
+	private static final int[][] AXES = {{1,0,2}, {1,0,2}, {2,0,1}, {2,0,1}, {0,2,1}, {0,2,1}};
+	/** Per side, which corner of the box each of the 6 vertices uses on each axis (0 = low, 1 = high) */
+	private static final int[][] CORNERS = {
+		{1,1,0, 0,1,0, 0,1,1, 0,1,1, 1,1,1, 1,1,0}, // top
+		{0,0,1, 0,0,0, 1,0,0, 1,0,1, 0,0,1, 1,0,0}, // bottom
+		{1,0,0, 0,0,0, 0,1,0, 0,1,0, 1,1,0, 1,0,0}, // back
+		{1,1,1, 0,1,1, 0,0,1, 1,0,1, 1,1,1, 0,0,1}, // front
+		{0,1,1, 0,1,0, 0,0,0, 0,0,1, 0,1,1, 0,0,0}, // left
+		{1,1,0, 1,1,1, 1,0,1, 1,0,0, 1,1,0, 1,0,1}  // right
+	};
 	
 	/** Default constructor, makes a random chunk */
 	public Chunk(int xp, int yp, int zp){
@@ -42,86 +157,552 @@ public class Chunk {
 		pos[1] = yp;
 		pos[2] = zp;
 		active = true;
+		regionOffset[0] = (xp - (MeshArena.region(xp) << MeshArena.REGION_SHIFT))*chunkSize;
+		regionOffset[1] = yp*chunkHeight;
+		regionOffset[2] = (zp - (MeshArena.region(zp) << MeshArena.REGION_SHIFT))*chunkSize;
+	}
+	
+	/** Fills the chunk's blocks from the terrain function, at w if the terrain is 4D. Must be called before buildMesh.
+	 * Needs no GL context */
+	public void generate(int w){
+		BlockStorage uniform = ChunkManager.uniformBlocks(pos[0], pos[1], pos[2]);
+		if(uniform != null){
+			blocks = uniform; // all air or all below the surface, nothing to generate
+		} else {
+			byte[] flat = flatBlocks.get();
+			fill(flat, w);
+			blocks = BlockStorage.pack(flat);
+		}
+		this.w = w;
+		for(int side = 0; side < 6; side++){
+			terrainBorder[side] = true; // freshly generated blocks are the terrain function
+		}
+	}
+	
+	/** Takes blocks saved earlier instead of generating them. Needs no GL context */
+	public void load(BlockStorage stored){
+		blocks = stored;
+		w = 0;
+		checkTerrainBorder(63); // they may have been edited
+	}
+	
+	/** Block at a position within the chunk, edits included */
+	public byte getBlock(int x, int y, int z){
+		byte[] e = edited;
+		return e != null ? e[BlockStorage.index(x, y, z)] : blocks.get(x, y, z);
+	}
+	
+	/** Changes a block at a position within the chunk. The change is kept aside, where only getBlock sees it,
+	 * until commitEdits. Returns whether the block was different. Must be called on the GL thread.
+	 * Throws IllegalArgumentException if type isn't a BlockType */
+	public boolean setBlock(int x, int y, int z, byte type){
+		if(!BlockType.isValid(type)){
+			throw new IllegalArgumentException("not a block type: " + type);
+		}
+		int i = BlockStorage.index(x, y, z);
+		if(edited == null){
+			if(blocks.get(i) == type){
+				return false;
+			}
+			edited = new byte[BlockStorage.VOLUME];
+			blocks.unpack(edited);
+			editedSides = 0;
+		} else if(edited[i] == type){
+			return false;
+		}
+		edited[i] = type;
+		editedSides |= borderSides(x, y, z);
+		return true;
+	}
+	
+	/** Are there edits waiting for commitEdits */
+	public boolean isDirty(){
+		return edited != null;
+	}
+	
+	/** Has the chunk been edited since it was generated or loaded */
+	public boolean isModified(){
+		return modified;
+	}
+	
+	/** Packs the edits from setBlock into new blocks, in one go however many there were. Workers meshing this
+	 * chunk or its neighbors keep the old blocks. Returns one bit per side (as in OFFSET) whose border layer was
+	 * edited, so the neighbor there needs a new mesh too. Must be called on the GL thread */
+	public int commitEdits(){
+		if(edited == null){
+			return 0;
+		}
+		blocks = BlockStorage.pack(edited);
+		edited = null;
+		modified = true;
+		checkTerrainBorder(editedSides);
+		return editedSides;
+	}
+	
+	/** Recomputes terrainBorder for the sides set in a bitmask, by comparing the border layer with the terrain function */
+	private void checkTerrainBorder(int sides){
+		BlockStorage current = blocks;
+		int[] dims = {chunkSize, chunkHeight, chunkSize};
+		int[] p = new int[3];
+		for(int side = 0; side < 6; side++){
+			if((sides & 1<<side) == 0){
+				continue;
+			}
+			int n = AXES[side][0], u = AXES[side][1], v = AXES[side][2];
+			p[n] = OFFSET[side][n] > 0 ? dims[n]-1 : 0;
+			boolean matches = true;
+			check:
+			for(p[u] = 0; p[u] < dims[u]; p[u]++){
+				for(p[v] = 0; p[v] < dims[v]; p[v]++){
+					byte expected = ChunkManager.terrain(p[0] + pos[0]*chunkSize, p[1] + pos[1]*chunkHeight, p[2] + pos[2]*chunkSize, w);
+					if(current.get(p[0], p[1], p[2]) != expected){
+						matches = false;
+						break check;
+					}
+				}
+			}
+			terrainBorder[side] = matches;
+		}
+	}
+	
+	/** Sides (bits as in OFFSET) whose border layer a block position is on */
+	private static int borderSides(int x, int y, int z){
+		return (y == chunkHeight-1 ? 1 : 0) | (y == 0 ? 2 : 0) | (z == 0 ? 4 : 0)
+				| (z == chunkSize-1 ? 8 : 0) | (x == 0 ? 16 : 0) | (x == chunkSize-1 ? 32 : 0);
 	}
 	
-	/** Updates the Vertex Buffer when a chunk is changed */
-	public void update(GL2 gl){
-		// Not implemented, chunks are immutable
+	/** The chunk's blocks, null before it's generated */
+	public BlockStorage getBlocks(){
+		return blocks;
 	}
 	
-	/** Creates a mesh from cube data, and stores it to a newly allocated Vertex Buffer */
-	public void createMesh(GL2 gl){
-		for(int x = 0; x < chunkSize; x++){
+	/** Generates the blocks of the slice at w without touching the current blocks, which neighbors may be
+	 * meshing against. Records what changed for applySlice. Needs no GL context */
+	public void reslice(int w){
+		BlockStorage current = blocks;
+		BlockStorage uniform = ChunkManager.uniformBlocks(pos[0], pos[1], pos[2]);
+		pendingW = w;
+		if(uniform != null && uniform == current){
+			pendingBlocks = null; // the same at every w
+			pendingSides = 0;
+			return;
+		}
+		byte[] next = flatBlocks.get();
+		if(uniform != null){
+			uniform.unpack(next);
+		} else {
+			fill(next, w);
+		}
+		boolean changed = false;
+		int sides = 0;
+		for(int x = 0, i = 0; x < chunkSize; x++){
 			for(int y = 0; y < chunkHeight; y++){
-				for(int z = 0; z < chunkSize; z++){
-					if(y + pos[1]*chunkHeight <= ChunkManager.map2D(x + pos[0]*chunkSize, z + pos[2]*chunkSize)){
-						blocks[x][y][z] = (byte) (2.7*(y+pos[1]*chunkHeight)/13+1); // Initialize each block
-					} else {
-						blocks[x][y][z] = 0;
+				for(int z = 0; z < chunkSize; z++, i++){
+					if(next[i] != current.get(i)){
+						changed = true;
+						sides |= borderSides(x, y, z); // those neighbors cull against it
 					}
 				}
 			}
 		}
-		vertexCount = 0;
-		// Allocate the buffers (Change to one buffer, or use short/byte buffer for normals and color)
-		vertexData = Buffers.newDirectFloatBuffer(chunkSize*chunkSize*chunkSize*18*3);
-		normalData = Buffers.newDirectFloatBuffer(chunkSize*chunkHeight*chunkSize*18*3);
-		colorsData = Buffers.newDirectFloatBuffer(chunkSize*chunkSize*chunkSize*18*3);
-		for(int x = 0; x < chunkSize; x++){
+		pendingBlocks = !changed ? null : uniform != null ? uniform : BlockStorage.pack(next);
+		pendingSides = sides;
+	}
+	
+	/** Swaps in the blocks from reslice. Must be called on the GL thread, while no worker is building this chunk.
+	 * Returns -1 if no block changed, so the mesh is still right, otherwise one bit per side (as in OFFSET)
+	 * whose border layer changed, so the neighbor there needs a new mesh too */
+	public int applySlice(){
+		w = pendingW;
+		if(pendingBlocks == null){
+			return -1;
+		}
+		blocks = pendingBlocks;
+		pendingBlocks = null;
+		edited = null; // edits belonged to the old slice
+		for(int side = 0; side < 6; side++){
+			terrainBorder[side] = true;
+		}
+		return pendingSides;
+	}
+	
+	/** Position along w the blocks were generated at */
+	public int getW(){
+		return w;
+	}
+	
+	/** Position along w the terrain function was evaluated at for the uploaded mesh's predicted sides */
+	public int getPredictedW(){
+		return predictedW;
+	}
+	
+	/** Fills a block array, indexed as in BlockStorage.index, from the terrain function: the heightmap, or the
+	 * slice at w of the 4D noise */
+	private void fill(byte[] into, int w){
+		if(GUI.fourD){
+			// Sample the whole chunk in one call. z is the first noise axis so the samples come out in [x][y][z] order
+			double[] noise = sliceNoise.get();
+			double s = ChunkManager.SLICE_SCALE;
+			SimplexNoise.noise(noise, 0, pos[2]*chunkSize*s, pos[1]*chunkHeight*s, pos[0]*chunkSize*s, w*s,
+					s, s, s, 0, chunkSize, chunkHeight, chunkSize, 1);
+			for(int x = 0, i = 0; x < chunkSize; x++){
+				for(int y = 0; y < chunkHeight; y++){
+					for(int z = 0; z < chunkSize; z++, i++){
+						into[i] = ChunkManager.terrain(y + pos[1]*chunkHeight, ChunkManager.sliceHeight(noise[i]));
+					}
+				}
+			}
+			return;
+		}
+		double[] heights = ChunkManager.heights.tile(pos[0], pos[2]); // shared with the rest of the column
+		for(int x = 0, i = 0; x < chunkSize; x++){
 			for(int y = 0; y < chunkHeight; y++){
-				for(int z = 0; z < chunkSize; z++){
-					if(BlockType.isActive(blocks[x][y][z])){
-						createCube(x, y, z); // If the cube is active, add it to the Buffer
+				for(int z = 0; z < chunkSize; z++, i++){
+					into[i] = ChunkManager.terrain(y + pos[1]*chunkHeight, heights[x*chunkSize + z]); // Initialize each block
+				}
+			}
+		}
+	}
+	
+	/** Builds the mesh from cube data into a CPU side buffer. Needs no GL context, so it can run on a worker thread.
+	 * Only one thread may build a chunk at a time. Call upload on the GL thread afterwards, can be called again to remesh */
+	public void buildMesh(){
+		meshReady = false;
+		meshCount = 0;
+		verticesSaved = 0;
+		meshPredicted = new boolean[6];
+		meshW = w;
+		meshLod = lod;
+		BlockStorage current = blocks;
+		if(current.isAir()){
+			vertexData = null; // no faces, skip the buffers altogether
+			meshLinks = ALL_LINKS;
+			meshReady = true;
+			return;
+		}
+		meshSolid = current.isSolid();
+		meshBlocks = flatBlocks.get();
+		current.unpack(meshBlocks); // read every block straight from an array while meshing
+		meshLinks = meshSolid ? 0 : sideLinks(meshBlocks);
+		// Build into this thread's scratch buffer, which fits the worst case of 6 faces of 6 vertices per block
+		vertexData = MeshBufferPool.scratch();
+		try {
+			if(meshLod > 0){
+				createCoarse(meshLod); // far away, merge blocks into cells first
+			} else if(GUI.greedy){
+				createGreedy(meshBlocks, new int[] {chunkSize, chunkHeight, chunkSize}, 0); // merge faces into larger quads
+			} else {
+				for(int x = 0; x < chunkSize; x++){
+					for(int y = 0; y < chunkHeight; y++){
+						for(int z = 0; z < chunkSize; z++){
+							if(meshSolid && x > 0 && y > 0 && z > 0 && x < chunkSize-1 && y < chunkHeight-1 && z < chunkSize-1){
+								continue; // covered on every side
+							}
+							if(BlockType.isActive(meshBlocks[BlockStorage.index(x, y, z)])){
+								createCube(x, y, z); // If the cube is active, add it to the Buffer
+							}
+						}
 					}
 				}
 			}
+		} catch (RuntimeException e) {
+			vertexData = null; // don't upload half a mesh
+			throw e;
+		} finally {
+			meshBlocks = null;
+		}
+		meshReady = true;
+		if(meshCount == 0){
+			vertexData = null; // nothing to upload, don't take a pooled buffer for it
+			return;
 		}
-		// correct the buffer size, and rewind
-		normalData.flip();
+		// copy just the vertices into a pooled buffer, so the scratch buffer is free for the next chunk
 		vertexData.flip();
-		colorsData.flip();
-		gl.glGenBuffers(3, buffer, 0); // allocate the buffers and get IDs
-		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer[0]);
-		gl.glBufferData(GL.GL_ARRAY_BUFFER, vertexCount*3*4, vertexData, GL.GL_DYNAMIC_DRAW);
-		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer[1]);
-		gl.glBufferData(GL.GL_ARRAY_BUFFER, vertexCount*3*4, normalData, GL.GL_DYNAMIC_DRAW);
-		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer[2]);
-		gl.glBufferData(GL.GL_ARRAY_BUFFER, vertexCount*3*4, colorsData, GL.GL_DYNAMIC_DRAW);
-		// set buffer as null now that it's done being used, hope it will be garbage collected
+		ByteBuffer mesh = MeshBufferPool.acquire(vertexData.remaining());
+		mesh.put(vertexData);
+		mesh.flip();
+		vertexData = mesh;
+		meshPooled = true;
+	}
+	
+	/** Uploads the mesh made by buildMesh to the chunk's slot in the MeshArena. Must be called on the GL thread.
+	 * A remesh writes into the slot it already has if the mesh fits, otherwise it trades it for a bigger one */
+	public void upload(MeshArena arena){
+		if(!meshReady){
+			return; // the build failed, keep drawing whatever was there before
+		}
+		meshReady = false;
+		int bytes = meshCount*VERTEX_SIZE;
+		if(bytes == 0){
+			releaseBuffer(arena); // nothing to draw, don't hold on to GPU memory
+		} else {
+			if(slot == null || slot.getCapacity() < bytes){
+				releaseBuffer(arena);
+				slot = arena.allocate(pos[0], pos[2], bytes);
+			}
+			arena.upload(slot, vertexData);
+		}
+		vertexCount = meshCount;
+		predicted = meshPredicted;
+		predictedW = meshW;
+		drawnLod = meshLod;
+		links = meshLinks;
+		// done with the buffer, give it back for the next chunk
+		if(vertexData != null && meshPooled){
+			MeshBufferPool.release(vertexData);
+		}
 		vertexData = null;
-		normalData = null;
-		colorsData = null;		
 	}
 	
-	/** Calls finalize, hope it actually gets deleted. Chunks can quickly build up in memory. */
-	public void delete(){
+	/** Vertices of the mesh from buildMesh, from position to limit, or null if it has none. Read it through a
+	 * duplicate, it's only valid until upload or discardMesh */
+	public ByteBuffer getMesh(){
+		return meshReady ? vertexData : null;
+	}
+	
+	/** Throws away a mesh from buildMesh that won't be uploaded, giving its buffer back to the pool */
+	public void discardMesh(){
+		meshReady = false;
+		if(vertexData != null && meshPooled){
+			MeshBufferPool.release(vertexData);
+		}
+		vertexData = null;
+	}
+	
+	/** Bytes writeSnapshot takes with the given mesh */
+	int snapshotSize(byte[] mesh){
+		return 56 + (blocks.isShared() ? 0 : blocks.serializedSize()) + mesh.length;
+	}
+	
+	/** Writes what it takes to draw and stream this chunk again without generating or meshing it: position, blocks,
+	 * the state of the uploaded mesh, and the mesh itself, which must be the one uploaded last. See readSnapshot */
+	void writeSnapshot(ByteBuffer out, byte[] mesh){
+		BlockStorage b = blocks;
+		int borders = 0, sides = 0;
+		for(int side = 0; side < 6; side++){
+			borders |= terrainBorder[side] ? 1 << side : 0;
+			sides |= predicted[side] ? 1 << side : 0;
+		}
+		out.putInt(pos[0]).putInt(pos[1]).putInt(pos[2]).putInt(w).putInt(predictedW).putInt(lod).putInt(drawnLod)
+				.putInt(borders).putInt(sides).putInt(verticesSaved).putLong(links);
+		int lengthAt = out.position();
+		out.putInt(-1).putInt(mesh.length/VERTEX_SIZE);
+		if(!b.isShared()){
+			int start = out.position();
+			b.writeTo(out);
+			out.putInt(lengthAt, out.position() - start);
+		} // shared blocks are one of ChunkManager.uniformBlocks, they are looked up again
+		out.put(mesh);
+	}
+	
+	/** Reads a chunk written by writeSnapshot, with its mesh ready to upload straight from the input's memory.
+	 * Returns null if the record doesn't make sense */
+	static Chunk readSnapshot(ByteBuffer in){
+		if(in.remaining() < 56){
+			return null;
+		}
+		Chunk c = new Chunk(in.getInt(), in.getInt(), in.getInt());
+		c.w = in.getInt();
+		c.meshW = in.getInt();
+		c.lod = in.getInt();
+		c.meshLod = in.getInt();
+		int borders = in.getInt(), sides = in.getInt();
+		c.verticesSaved = in.getInt();
+		c.meshLinks = in.getLong();
+		int blockBytes = in.getInt(), vertices = in.getInt();
+		if(vertices < 0 || c.lod < 0 || c.lod > ChunkManager.LOD_MAX || c.meshLod < 0 || c.meshLod > ChunkManager.LOD_MAX){
+			return null;
+		}
+		if(blockBytes < 0){
+			c.blocks = ChunkManager.uniformBlocks(c.pos[0], c.pos[1], c.pos[2]);
+		} else if(blockBytes <= in.remaining()){
+			ByteBuffer stored = in.slice();
+			stored.limit(blockBytes);
+			c.blocks = BlockStorage.readFrom(stored);
+			in.position(in.position() + blockBytes);
+		}
+		if(c.blocks == null || (long) vertices*VERTEX_SIZE > in.remaining()){
+			return null;
+		}
+		for(int side = 0; side < 6; side++){
+			c.terrainBorder[side] = (borders & 1 << side) != 0;
+			c.meshPredicted[side] = (sides & 1 << side) != 0;
+		}
+		c.meshCount = vertices;
+		if(vertices > 0){
+			c.vertexData = in.slice();
+			c.vertexData.limit(vertices*VERTEX_SIZE);
+			in.position(in.position() + vertices*VERTEX_SIZE);
+		}
+		c.meshPooled = false;
+		c.meshReady = true;
+		return c;
+	}
+	
+	/** Links a loaded neighbor on the given side, or unlinks it with null. Must be called on the GL thread */
+	public void setNeighbor(int side, Chunk c){
+		Chunk[] next = neighbors.clone();
+		next[side] = c;
+		neighbors = next;
+	}
+	
+	/** Unlinks this chunk from all its neighbors, so they fall back to the terrain function */
+	public void unlink(){
+		Chunk[] old = neighbors;
+		for(int side = 0; side < 6; side++){
+			if(old[side] != null){
+				old[side].setNeighbor(opposite(side), null);
+			}
+		}
+		neighbors = new Chunk[6];
+	}
+	
+	/** Was the given side meshed from the terrain function instead of a loaded neighbor */
+	public boolean isPredicted(int side){
+		return predicted[side];
+	}
+	
+	/** Does the layer of blocks on the given side match what the terrain function would generate there.
+	 * When it does, neighbors meshed against the terrain function already culled the right faces.
+	 * Recorded by generate, so checking it on the GL thread costs nothing */
+	public boolean matchesTerrain(int side){
+		return terrainBorder[side];
+	}
+	
+	/** Side facing the other way: top and bottom, back and front, left and right */
+	public static int opposite(int side){
+		return side ^ 1;
+	}
+	
+	/** Can the chunk be seen through from side from to side to, as far as its blocks go */
+	public boolean linksSides(int from, int to){
+		return (links & 1L << (from*6 + to)) != 0;
+	}
+	
+	/** Which pairs of sides see each other through air, as in links. Flood fills every pocket of air in the
+	 * blocks, noting which sides it touches, and links those sides pairwise */
+	private static long sideLinks(byte[] blocks){
+		boolean[] seen = floodSeen.get();
+		Arrays.fill(seen, false);
+		int[] stack = floodStack.get();
+		long result = 0;
+		for(int start = 0; start < BlockStorage.VOLUME; start++){
+			if(seen[start] || BlockType.isActive(blocks[start])){
+				continue;
+			}
+			int sides = 0;
+			int top = 0;
+			stack[top++] = start;
+			seen[start] = true;
+			while(top > 0){
+				int i = stack[--top];
+				int z = i % chunkSize;
+				int y = (i / chunkSize) % chunkHeight;
+				int x = i / (chunkSize*chunkHeight);
+				sides |= borderSides(x, y, z);
+				// the neighbors along z, y and x are 1, chunkSize and chunkSize*chunkHeight apart
+				if(z > 0) top = push(blocks, seen, stack, top, i - 1);
+				if(z < chunkSize-1) top = push(blocks, seen, stack, top, i + 1);
+				if(y > 0) top = push(blocks, seen, stack, top, i - chunkSize);
+				if(y < chunkHeight-1) top = push(blocks, seen, stack, top, i + chunkSize);
+				if(x > 0) top = push(blocks, seen, stack, top, i - chunkSize*chunkHeight);
+				if(x < chunkSize-1) top = push(blocks, seen, stack, top, i + chunkSize*chunkHeight);
+			}
+			for(int a = 0; a < 6; a++){
+				if((sides & 1<<a) != 0){
+					for(int b = 0; b < 6; b++){
+						if((sides & 1<<b) != 0){
+							result |= 1L << (a*6 + b);
+						}
+					}
+				}
+			}
+			if(result == ALL_LINKS){
+				break; // can't get any more open
+			}
+		}
+		return result;
+	}
+	
+	/** Pushes block i for sideLinks' flood fill if it's air and hasn't been reached yet, returns the new stack top */
+	private static int push(byte[] blocks, boolean[] seen, int[] stack, int top, int i){
+		if(!seen[i] && !BlockType.isActive(blocks[i])){
+			seen[i] = true;
+			stack[top++] = i;
+		}
+		return top;
+	}
+	
+	/** Sets the level of detail the next buildMesh meshes at, 0 to LOD_MAX. Must not be called while the chunk is building */
+	public void setLod(int lod){
+		this.lod = lod;
+	}
+	
+	/** Level of detail the chunk is meshed at, or will be once its pending remesh is done */
+	public int getLod(){
+		return lod;
+	}
+	
+	/** Level of detail of the mesh being drawn */
+	public int getDrawnLod(){
+		return drawnLod;
+	}
+	
+	/** Number of vertices in the mesh being drawn */
+	public int getVertexCount(){
+		return vertexCount;
+	}
+	
+	/** Number of vertices greedy meshing saved when this chunk was built, 0 for the per-face path */
+	public int getVerticesSaved(){
+		return verticesSaved;
+	}
+	
+	/** Frees the chunk: its slot goes back to the arena and its blocks to the garbage collector.
+	 * Must be called on the GL thread. The chunk can't be built or drawn afterwards */
+	public void delete(MeshArena arena){
+		releaseBuffer(arena);
+		discardMesh();
+		vertexCount = 0;
 		blocks = null;
-		try {
-			finalize();
-		} catch (Throwable e) {	}
-	}
-	
-	/** Renders the previously created mesh. Ideally the Vertex Buffer is stored on the graphics memory */
-	public void render(GL2 gl){
-		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY); // enable vertex array
-		gl.glEnableClientState(GL2.GL_COLOR_ARRAY); // enable color array
-		gl.glEnableClientState(GL2.GL_NORMAL_ARRAY); // enable normal array
-		
-		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, buffer[0]);
-        gl.glVertexPointer(3, GL.GL_FLOAT, 0, 0);   // Set The Vertex Pointer To The Vertex Buffer 
-        
-        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer[1]);
-        gl.glNormalPointer(GL.GL_FLOAT, 0, 0); // Set the normal pointer to the normal buffer
-        
-        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer[2]);
-        gl.glColorPointer(3, GL.GL_FLOAT, 0, 0); // set the color pointer to the color buffer
-        
-		gl.glDrawArrays(GL.GL_TRIANGLES, 0, vertexCount); // draw the buffer
-		
-		gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);  
-		gl.glDisableClientState(GL2.GL_COLOR_ARRAY); 
-		gl.glDisableClientState(GL2.GL_NORMAL_ARRAY); 
-		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0); // reset bound buffer
+	}
+	
+	/** Approximate heap bytes of the chunk's blocks */
+	public long blockMemory(){
+		BlockStorage b = blocks;
+		return b == null ? 0 : b.memoryBytes();
+	}
+	
+	/** Are the blocks one of the shared all air or all solid instances, stored and generated for free */
+	public boolean isUniform(){
+		BlockStorage b = blocks;
+		return b != null && b.isShared();
+	}
+	
+	/** Is there nothing to draw */
+	public boolean isEmpty(){
+		return vertexCount == 0;
+	}
+	
+	/** Does this chunk hold a slot in the arena */
+	public boolean hasBuffer(){
+		return slot != null;
+	}
+	
+	/** Gives the slot back to the arena, if the chunk has one. Must be called on the GL thread */
+	public void releaseBuffer(MeshArena arena){
+		if(slot != null){
+			arena.free(slot);
+			slot = null;
+		}
+	}
+	
+	/** Queues the previously created mesh to be drawn with the rest of its region when the arena is flushed */
+	public void render(MeshArena arena){
+		if(vertexCount == 0){
+			return;
+		}
+		arena.draw(slot, vertexCount);
 	}
 	
 	@Override
@@ -136,285 +717,243 @@ public class Chunk {
 	
 	@Override
 	public int hashCode() {
-        return (pos[0]*7919+pos[1]*977+pos[0]*7);
-    }
+		long k = key();
+		return (int) (k ^ (k >>> 32));
+	}
+	
+	/** Chunk position packed into a long, see ChunkMap.key */
+	public long key(){
+		return ChunkMap.key(pos[0], pos[1], pos[2]);
+	}
 	
 	/** If true, draw side */
 	private boolean[] checkCubeSides(int x, int y, int z){
 		boolean[] sideCheck = new boolean[6];
-		if ((!(y>=chunkHeight-1))&&BlockType.isActive(blocks[x][y+1][z])) {
-			sideCheck[0] = false;
-		} else {
-			sideCheck[0] = true;
+		for(int side = 0; side < 6; side++){
+			sideCheck[side] = isExposed(side, x, y, z);
 		}
-		
-		if ((!(y<=0))&&BlockType.isActive(blocks[x][y-1][z])) {
-			sideCheck[1] = false;
-		} else {
-			sideCheck[1] = true;
+		return sideCheck;
+	}
+	
+	/** Is the given side of a block uncovered. Blocks on the edge of a chunk look into the loaded neighbor,
+	 * or into the terrain function if the neighbor isn't loaded yet */
+	private boolean isExposed(int side, int x, int y, int z){
+		int nx = x + OFFSET[side][0];
+		int ny = y + OFFSET[side][1];
+		int nz = z + OFFSET[side][2];
+		if(nx < 0 || ny < 0 || nz < 0 || nx >= chunkSize || ny >= chunkHeight || nz >= chunkSize){
+			Chunk other = neighbors[side];
+			BlockStorage otherBlocks = (other == null) ? null : other.blocks;
+			if(otherBlocks != null){
+				return !BlockType.isActive(otherBlocks.get((nx+chunkSize)%chunkSize, (ny+chunkHeight)%chunkHeight, (nz+chunkSize)%chunkSize));
+			}
+			meshPredicted[side] = true;
+			return !BlockType.isActive(ChunkManager.terrain(nx + pos[0]*chunkSize, ny + pos[1]*chunkHeight, nz + pos[2]*chunkSize, w));
 		}
-		
-		if ((!(z<=0))&&BlockType.isActive(blocks[x][y][z-1])) {
-			sideCheck[2] = false;
-		} else {
-			sideCheck[2] = true;
+		return !BlockType.isActive(meshBlocks[BlockStorage.index(nx, ny, nz)]);
+	}
+	
+	/** If a cube should be draw, createCube adds its vertex, normal, and color data to the Arrays that will become buffers */
+	private void createCube(int x, int y, int z){
+		boolean[] sides = checkCubeSides(x, y, z);
+		for(int side = 0; side < 6; side++){
+			if(sides[side]){
+				putFace(side, x, y, z, x+1, y+1, z+1, meshBlocks[BlockStorage.index(x, y, z)]);
+			}
 		}
-		
-		if ((!(z>=chunkSize-1))&&BlockType.isActive(blocks[x][y][z+1])) {
-			sideCheck[3] = false;
-		} else {
-			sideCheck[3] = true;
+	}
+	
+	/** Meshes the chunk at a lower level of detail. Each cell of 2^lod blocks across becomes one big block:
+	 * active if at least half its blocks are, colored like its highest active block so surfaces keep their color.
+	 * The cells are then greedy meshed. Border cells are culled against the neighbor's cells when it's at the same
+	 * level. Otherwise the cells don't line up, so every border face is drawn unless the neighbor is solid all
+	 * through: these walls ("skirts") cover the cracks between the two levels */
+	private void createCoarse(int lod){
+		int s = 1 << lod;
+		int[] dims = {chunkSize >> lod, chunkHeight >> lod, chunkSize >> lod};
+		CoarseScratch scratch = coarseScratch.get();
+		byte[] cells = scratch.cells; // only the first dims[0]*dims[1]*dims[2] are used
+		int half = (s*s*s + 1)/2;
+		for(int cx = 0, c = 0; cx < dims[0]; cx++){
+			for(int cy = 0; cy < dims[1]; cy++){
+				for(int cz = 0; cz < dims[2]; cz++, c++){
+					int count = 0;
+					byte top = 0;
+					for(int y = s-1; y >= 0; y--){ // from the top down, so the first active block is the highest
+						for(int x = 0; x < s; x++){
+							for(int z = 0; z < s; z++){
+								byte b = meshBlocks[BlockStorage.index(cx*s + x, cy*s + y, cz*s + z)];
+								if(BlockType.isActive(b)){
+									if(count++ == 0){
+										top = b;
+									}
+								}
+							}
+						}
+					}
+					cells[c] = count >= half ? top : 0;
+				}
+			}
 		}
-		
-		if ((!(x<=0))&&BlockType.isActive(blocks[x-1][y][z])) {
-			sideCheck[4] = false;
-		} else {
-			sideCheck[4] = true;
+		cellCovered = scratch.covered;
+		cellNeighbors = scratch.neighbors;
+		for(int side = 0; side < 6; side++){
+			cellCovered[side] = isCovered(side);
+			Chunk other = neighbors[side];
+			cellNeighbors[side] = other != null && other.lod == lod ? other.blocks : null;
 		}
-		
-		if ((!(x>=chunkSize-1))&&BlockType.isActive(blocks[x+1][y][z])) {
-			sideCheck[5] = false;
-		} else {
-			sideCheck[5] = true;
+		try {
+			createGreedy(cells, dims, lod);
+		} finally {
+			Arrays.fill(scratch.neighbors, null); // don't keep the neighbors' blocks alive
+			cellCovered = null;
+			cellNeighbors = null;
 		}
-		
-
-		
-		return sideCheck;
 	}
 	
-	/** If a cube should be draw, createCube adds its vertex, normal, and color data to the Arrays that will become buffers */
-	private void createCube(float x, float y, float z){
-		boolean[] sides = checkCubeSides((int)x,(int)y,(int)z);
-		float[] color = BlockType.color(blocks[(int)x][(int)y][(int)z]);
-		
-//		  gl.glNormal3f(0.0f, 1.0f, 0.0f);
-		if(sides[0]){
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put(len*z);
-			
-			vertexData.put(len*x);
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put(len*z);
-			
-			vertexData.put(len*x);
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put((len)*(z+1.0f));
-			
-			
-			vertexData.put(len*x);
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put(len*z);
-			
-			vertexCount += 6;
-			for(int i = 0; i < 6; i++){
-				normalData.put(0f);
-				normalData.put(1f);
-				normalData.put(0f);
-				colorsData.put(color[0]);
-				colorsData.put(color[1]);
-				colorsData.put(color[2]);
+	/** Buffers createCoarse fills on each build, one set per meshing thread */
+	private static class CoarseScratch {
+		/** Cells of a chunk at level 1, the most there can be */
+		final byte[] cells = new byte[BlockStorage.VOLUME/8];
+		/** Becomes cellCovered */
+		final boolean[] covered = new boolean[6];
+		/** Becomes cellNeighbors */
+		final BlockStorage[] neighbors = new BlockStorage[6];
+	}
+	
+	/** Is the cell of 2^lod blocks across at cell position (cx, cy, cz) active, by the rule of createCoarse */
+	private static boolean isCellActive(BlockStorage b, int cx, int cy, int cz, int lod){
+		int s = 1 << lod;
+		int count = 0;
+		for(int x = 0; x < s; x++){
+			for(int y = 0; y < s; y++){
+				for(int z = 0; z < s; z++){
+					if(BlockType.isActive(b.get(cx*s + x, cy*s + y, cz*s + z))){
+						count++;
+					}
+				}
 			}
 		}
-	 
-//	      // Bottom-face
-//	      gl.glNormal3f(0.0f, -1.0f, 0.0f);
-		
-		if(sides[1]){
-			vertexData.put(len*x);
-			vertexData.put(len*y);
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put(len*x);
-			vertexData.put(len*y);
-			vertexData.put(len*z);
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put(len*y);
-			vertexData.put(len*z);
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put(len*y);
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put(len*x);
-			vertexData.put(len*y);
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put(len*y);
-			vertexData.put(len*z);
-			
-			vertexCount += 6;
-			for(int i = 0; i < 6; i++){
-				normalData.put(0f);
-				normalData.put(-1f);
-				normalData.put(0f);
-				colorsData.put(color[0]);
-				colorsData.put(color[1]);
-				colorsData.put(color[2]);
-			}
+		return count >= (s*s*s + 1)/2;
+	}
+	
+	/** Is the neighbor on the given side solid all through, so nothing on that side of this chunk can be seen.
+	 * Where the neighbor isn't loaded, asks the terrain function whether it will be */
+	private boolean isCovered(int side){
+		int y = pos[1] + OFFSET[side][1];
+		if(y < 0){
+			return true; // everything below the world is solid
 		}
-//	      // Back-face
-//	      gl.glNormal3f(0.0f, 0.0f, -1.0f);
-		if(sides[2]){
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put(len*y);
-			vertexData.put(len*z);
-			
-			vertexData.put(len*x);
-			vertexData.put(len*y);
-			vertexData.put(len*z);
-			
-			vertexData.put(len*x);
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put(len*z);
-			
-			vertexData.put(len*x);
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put(len*z);
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put(len*z);
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put(len*y);
-			vertexData.put(len*z);
-			
-			vertexCount += 6;
-			for(int i = 0; i < 6; i++){
-				normalData.put(0f);
-				normalData.put(0f);
-				normalData.put(-1f);
-				colorsData.put(color[0]);
-				colorsData.put(color[1]);
-				colorsData.put(color[2]);
-			}
+		Chunk other = neighbors[side];
+		BlockStorage otherBlocks = (other == null) ? null : other.blocks;
+		if(otherBlocks == null){
+			meshPredicted[side] = true;
+			otherBlocks = ChunkManager.uniformBlocks(pos[0] + OFFSET[side][0], y, pos[2] + OFFSET[side][2]);
 		}
-//	      // Front-face
-//	      gl.glNormal3f(0.0f, 0.0f, 1.0f);
-		if(sides[3]){
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put(len*x);
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put(len*x);
-			vertexData.put(len*y);
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put(len*y);
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put(len*x);
-			vertexData.put(len*y);
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexCount += 6;
-			for(int i = 0; i < 6; i++){
-				normalData.put(0f);
-				normalData.put(0f);
-				normalData.put(1f);
-				colorsData.put(color[0]);
-				colorsData.put(color[1]);
-				colorsData.put(color[2]);
+		return otherBlocks != null && otherBlocks.isSolid();
+	}
+	
+	/** Greedy meshing. Sweeps every slice of the chunk once per side and merges visible faces of the same
+	 * BlockType into the largest rectangles it can, so a flat 16x16 surface becomes one quad instead of 256.
+	 * grid holds the blocks, or cells 2^lod blocks across, indexed like BlockStorage.index with the given dims */
+	private void createGreedy(byte[] grid, int[] dims, int lod){
+		byte[] mask = new byte[chunkSize*Math.max(chunkSize, chunkHeight)];
+		int[] p = new int[3];
+		int faces = 0; // faces the per-face path would have drawn
+		for(int side = 0; side < 6; side++){
+			int n = AXES[side][0]; // axis the face points along
+			int u = AXES[side][1]; // first axis within the plane
+			int v = AXES[side][2]; // second axis within the plane
+			int first = 0, last = dims[n]-1;
+			if(meshSolid){
+				first = last = OFFSET[side][n] > 0 ? dims[n]-1 : 0; // inside a solid chunk every face is covered
 			}
-		}
-
-//	 
-//	      // Left-face
-//	      gl.glNormal3f(-1.0f, 0.0f, 0.0f);
-		if(sides[4]){
-			vertexData.put(len*x);
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put(len*x);
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put(len*z);
-			
-			vertexData.put(len*x);
-			vertexData.put(len*y);
-			vertexData.put(len*z);
-			
-			vertexData.put(len*x);
-			vertexData.put(len*y);
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put(len*x);
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put(len*x);
-			vertexData.put(len*y);
-			vertexData.put(len*z);
-			
-			vertexCount += 6;
-			for(int i = 0; i < 6; i++){
-				normalData.put(-1f);
-				normalData.put(0f);
-				normalData.put(0f);
-				colorsData.put(color[0]);
-				colorsData.put(color[1]);
-				colorsData.put(color[2]);
+			for(p[n] = first; p[n] <= last; p[n]++){
+				// Mark every visible face in this slice with its block type
+				for(p[v] = 0; p[v] < dims[v]; p[v]++){
+					for(p[u] = 0; p[u] < dims[u]; p[u]++){
+						byte b = grid[(p[0]*dims[1] + p[1])*dims[2] + p[2]];
+						if(BlockType.isActive(b) && (lod == 0 ? isExposed(side, p[0], p[1], p[2]) : isCellExposed(grid, dims, side, p))){
+							mask[p[u] + p[v]*dims[u]] = b;
+							faces++;
+						} else {
+							mask[p[u] + p[v]*dims[u]] = 0;
+						}
+					}
+				}
+				// Grow rectangles along u, then along v, and clear them from the mask as they are emitted
+				for(int j = 0; j < dims[v]; j++){
+					for(int i = 0; i < dims[u];){
+						byte b = mask[i + j*dims[u]];
+						if(b == 0){
+							i++;
+							continue;
+						}
+						int w = 1;
+						while(i+w < dims[u] && mask[i+w + j*dims[u]] == b){
+							w++;
+						}
+						int h = 1;
+						grow:
+						while(j+h < dims[v]){
+							for(int k = 0; k < w; k++){
+								if(mask[i+k + (j+h)*dims[u]] != b){
+									break grow;
+								}
+							}
+							h++;
+						}
+						for(int l = 0; l < h; l++){
+							for(int k = 0; k < w; k++){
+								mask[i+k + (j+l)*dims[u]] = 0;
+							}
+						}
+						int[] lo = new int[3];
+						int[] hi = new int[3];
+						lo[n] = p[n];
+						hi[n] = p[n]+1;
+						lo[u] = i;
+						hi[u] = i+w;
+						lo[v] = j;
+						hi[v] = j+h;
+						putFace(side, lo[0] << lod, lo[1] << lod, lo[2] << lod, hi[0] << lod, hi[1] << lod, hi[2] << lod, b);
+						i += w;
+					}
+				}
 			}
 		}
-
-//	      // Right-face
-//	      gl.glNormal3f(1.0f, 0.0f, 0.0f);
-		if(sides[5]){
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put(len*z);
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put(len*y);
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put(len*y);
-			vertexData.put(len*z);
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put((len)*(y+1.0f));
-			vertexData.put(len*z);
-			
-			vertexData.put((len)*(x+1.0f));
-			vertexData.put(len*y);
-			vertexData.put((len)*(z+1.0f));
-			
-			vertexCount += 6;
-			for(int i = 0; i < 6; i++){
-				normalData.put(1f);
-				normalData.put(0f);
-				normalData.put(0f);
-				colorsData.put(color[0]);
-				colorsData.put(color[1]);
-				colorsData.put(color[2]);
+		verticesSaved = faces*6 - meshCount;
+	}
+	
+	/** Is the given side of a cell uncovered. On the chunk's border it looks at the neighbor's cell if the neighbor
+	 * is at the same level, otherwise it is unless the whole neighbor is solid, see createCoarse */
+	private boolean isCellExposed(byte[] cells, int[] dims, int side, int[] p){
+		int nx = p[0] + OFFSET[side][0];
+		int ny = p[1] + OFFSET[side][1];
+		int nz = p[2] + OFFSET[side][2];
+		if(nx < 0 || ny < 0 || nz < 0 || nx >= dims[0] || ny >= dims[1] || nz >= dims[2]){
+			if(cellCovered[side]){
+				return false;
 			}
+			BlockStorage other = cellNeighbors[side];
+			return other == null || !isCellActive(other, (nx+dims[0])%dims[0], (ny+dims[1])%dims[1], (nz+dims[2])%dims[2], meshLod);
+		}
+		return !BlockType.isActive(cells[(nx*dims[1] + ny)*dims[2] + nz]);
+	}
+	
+	/** Adds one side of the box (x0,y0,z0)-(x1,y1,z1) as two triangles. A single block is a box of size 1,
+	 * merged faces from greedy meshing are larger boxes one block thick */
+	private void putFace(int side, int x0, int y0, int z0, int x1, int y1, int z1, byte type){
+		int[] c = CORNERS[side];
+		byte attr = (byte) (side << 4 | type);
+		int[] o = regionOffset;
+		for(int i = 0; i < 18; i += 3){
+			vertexData.put((byte) (o[0] + (c[i] == 0 ? x0 : x1)));
+			vertexData.put((byte) (o[1] + (c[i+1] == 0 ? y0 : y1)));
+			vertexData.put((byte) (o[2] + (c[i+2] == 0 ? z0 : z1)));
+			vertexData.put(attr);
 		}
+		meshCount += 6;
 	}
 
 }
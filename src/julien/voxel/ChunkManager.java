@@ -1,14 +1,19 @@
 package julien.voxel;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
-
-import javax.media.opengl.GL2;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Manages the chunks. Creates new chunks, removes old chunks, renders active chunks.
- * Chunk updating isn't currently implemented.
+ * Chunks are generated and meshed on a pool of worker threads; the GL thread only uploads finished meshes.
+ * Blocks can be changed with setBlock, edited chunks are remeshed once per frame however many edits they got.
  * @author Julien Brenneck
  * @version December 15, 2013
  */
@@ -17,128 +22,1112 @@ public class ChunkManager {
 	public static final int chunkSize = GUI.chunkSize;
 	/** Number of blocks across a chunk is */
 	public static final int chunkHeight = 16;
+	/** Number of chunks stacked vertically */
+	public static final int chunkLayers = 4;
 	/** Size of each block */
 	public static final float len = 1.0f;
+	/** Chunk distances (along x or z, whichever is further) from the camera's chunk where meshes switch to cells
+	 * of 2, 4 and 8 blocks across. Each level costs about a quarter of the triangles of the one before */
+	private static final int[] LOD_DISTANCE = {4, 6, 10};
+	/** How many chunks past a switch distance a chunk has to be before it changes level, so a camera moving
+	 * back and forth on the line doesn't keep remeshing it */
+	private static final int LOD_HYSTERESIS = 1;
+	/** Coarsest level of detail, lower if the chunk size isn't divisible by cells that big */
+	public static final int LOD_MAX = maxLod();
+	/** Noise coordinates per block for 4D terrain */
+	public static final double SLICE_SCALE = 1.0/32;
+	/** Terrain heights shared by all chunks of a column. Holds twice the columns within the draw distance */
+	public static final HeightmapCache heights = new HeightmapCache(2*(2*GUI.drawDistance+3)*(2*GUI.drawDistance+3));
+	/** Generated and edited chunks saved on disk, null if they aren't being saved */
+	private final RegionStore store;
 	/** Number of chunks to draw in each direction */
 	private int draw = GUI.drawDistance;
-	/** List of active, drawn chunks */
-	private HashSet<Chunk> chunkList;
-	/** List of chunks to be loaded */
-	private ArrayList<Chunk> chunkLoad;
+	/** Every chunk the manager knows about, queued, building, loaded or unloading, with its state */
+	private ChunkMap chunks;
+	/** Chunks to be loaded, nearest to the camera first */
+	private LoadQueue chunkLoad;
+	/** Loaded chunks that need a new mesh because a neighbor's border differs from the terrain function */
+	private ArrayList<Chunk> chunkRemesh;
 	/** List of chunks to be unloaded */
 	private ArrayList<Chunk> chunkUnload;
-	/** set of all active chunk locations */
-	private HashSet<Integer[]> loc = new HashSet<Integer[]>();
-	/** Last chunk position */
+	/** Loaded chunks with edits waiting to be committed, see setBlock */
+	private ArrayList<Chunk> chunkDirty;
+	/** Loaded chunks to regenerate at sliceW, see setSlice */
+	private ArrayList<Chunk> chunkReslice;
+	/** Remeshed chunks holding their new mesh until every chunk of the slice is ready */
+	private ArrayList<Chunk> chunkHeld;
+	/** Number of chunks handed to the workers that haven't been uploaded yet */
+	private int building = 0;
+	/** Of those, how many are being regenerated for a new w */
+	private int slicing = 0;
+	/** Of those, how many are loaded chunks being remeshed */
+	private int remeshing = 0;
+	/** Position along w chunks are generated at */
+	private int sliceW = 0;
+	/** Position along w the camera wants to see, sliceW catches up one slice at a time */
+	private int targetW = 0;
+	/** Is a new slice being built. Remeshes are held back until they can all be uploaded in the same frame */
+	private boolean slicingStep = false;
+	/** Chunks the workers finished meshing, waiting to be uploaded on the GL thread */
+	private LinkedBlockingQueue<Chunk> chunkReady;
+	/** Worker threads that generate and mesh chunks */
+	private ExecutorService workers;
+	/** Most chunks handed to the workers at once. Keeps the queue in ChunkManager, where it can still be changed */
+	private int maxBuilding = 2*GUI.workers;
+	/** Camera chunk position the unloaded area was last computed for */
 	private int[] lastpos = {0, 0};
-	/** Is the chunk manager ready to check for new chunks to load */
-	private boolean ready = false;
+	/** Camera chunk position the loaded area was last computed for */
+	private int[] loadpos = {0, 0};
+	/** Total vertices saved by greedy meshing over all chunks built */
+	private long verticesSaved = 0;
+	/** Makes the graphics calls, OpenGL or only counting them */
+	private final RenderBackend backend;
+	/** Hands out and recycles the Vertex Buffers the arena's pages use */
+	private final VboRecycler vbos;
+	/** Holds every chunk's mesh in a few shared Vertex Buffers per region */
+	private final MeshArena arena;
+	/** Visible chunks of the current frame, see render */
+	private Chunk[] visible = new Chunk[256];
+	/** Distance and index into visible of each visible chunk, sorted to draw nearest first */
+	private long[] drawOrder = new long[256];
+	/** Chunks the visibility search has reached but not looked past yet, see searchVisible */
+	private Chunk[] searchQueue = new Chunk[256];
+	/** Incremented every search, marks which chunks it has reached */
+	private int searchFrame = 0;
+	/** Chunks uploaded and not unloaded yet */
+	private int loadedChunks = 0;
+	/** Chunks drawn last frame */
+	private int drawn = 0;
+	/** Chunks skipped last frame because they were outside the view */
+	private int culled = 0;
+	/** Vertices drawn last frame */
+	private long drawnVertices = 0;
+	/** Queued chunks dropped because they left the draw distance before being built */
+	private long cancelled = 0;
+	/** The initial chunks saved for the next start, null unless GUI.warmStart */
+	private Snapshot snapshot;
+	/** Is the initial load running, with every upload captured for the snapshot */
+	private boolean capturing = false;
+	/** Chunks restored from the snapshot instead of built */
+	private int restored = 0;
+	/** Has any block been changed, which makes the snapshot stale */
+	private boolean worldEdited = false;
+	/** Where the snapshot is kept, relative to the working directory. Tests point it elsewhere */
+	static File snapshotFile = new File("world", "snapshot");
 	/** Random for debugging */
 	Random ran = new Random();
 	
-	/** Constructor builds initial chunks and initializes stuff */
-	public ChunkManager(GL2 gl){
-		chunkList = new HashSet<Chunk>();
-		chunkLoad = new ArrayList<Chunk>();
-		chunkUnload = new ArrayList<Chunk>();
-		for(int x = 0; x < draw*2; x++){
-			for(int y = 0; y < 4; y++){
-				for(int z = 0; z < draw*2; z++){
-					chunkLoad.add(new Chunk(x-draw, y, z-draw));
+	/** Constructor builds initial chunks and initializes stuff. Chunks are uploaded and drawn with the given backend,
+	 * a JoglBackend in the program */
+	public ChunkManager(RenderBackend backend){
+		this(backend, GUI.persist&&!GUI.fourD ? openStore() : null);
+		if(GUI.warmStart){
+			snapshot = new Snapshot(snapshotFile, lastpos[0], lastpos[1]);
+			List<Chunk> saved = snapshot.restore();
+			if(saved != null){
+				restore(saved);
+				return;
+			}
+			capturing = true;
+		}
+		// Wait for the initial chunks, uploading each as soon as it's ready
+		while(!chunkLoad.isEmpty()||building>0){
+			submit();
+			try {
+				finish(chunkReady.take());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if(capturing){
+			capturing = false;
+			ArrayList<Chunk> loaded = new ArrayList<Chunk>(loadedChunks);
+			for(int i = 0; i < chunks.capacity(); i++){
+				if(chunks.valueAt(i) != null&&(chunks.stateAt(i)&ChunkMap.LOADED)!=0){
+					loaded.add(chunks.valueAt(i));
 				}
 			}
+			snapshot.seal(loaded);
+		}
+	}
+	
+	/** Puts chunks read from the snapshot in place of the queued ones, uploading their meshes as they are.
+	 * Initial chunks the snapshot doesn't have stay queued */
+	private void restore(List<Chunk> saved){
+		for(Chunk c : saved){
+			chunks.put(c, ChunkMap.LOADED);
+			c.upload(arena);
+			link(c);
+			loadedChunks++;
+			verticesSaved += c.getVerticesSaved();
 		}
-		while(!chunkLoad.isEmpty()){
-			loadNext(gl, 1);
+		restored = saved.size();
+		chunkLoad = new LoadQueue();
+		for(int i = 0; i < chunks.capacity(); i++){
+			if(chunks.valueAt(i) != null&&(chunks.stateAt(i)&ChunkMap.QUEUED)!=0){
+				chunkLoad.add(chunks.valueAt(i));
+			}
+		}
+	}
+	
+	/** Creates a manager with the initial chunks queued but nothing built yet, loadNext builds them. Chunks and
+	 * their edits are saved in the store, if it isn't null. With a RecordingBackend it needs no GL context, for benchmarks and soak tests */
+	ChunkManager(RenderBackend backend, RegionStore store){
+		this.backend = backend;
+		this.store = store;
+		vbos = new VboRecycler(backend);
+		arena = new MeshArena(vbos, backend);
+		chunks = new ChunkMap((2*draw+1)*(2*draw+1)*chunkLayers);
+		chunkLoad = new LoadQueue();
+		chunkUnload = new ArrayList<Chunk>();
+		chunkRemesh = new ArrayList<Chunk>();
+		chunkReslice = new ArrayList<Chunk>();
+		chunkDirty = new ArrayList<Chunk>();
+		chunkHeld = new ArrayList<Chunk>();
+		chunkReady = new LinkedBlockingQueue<Chunk>();
+		workers = Executors.newFixedThreadPool(GUI.workers, new ThreadFactory() {
+			private int count = 0;
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "chunk-worker-" + count++);
+				t.setDaemon(true); // don't keep the program alive
+				return t;
+			}
+		});
+		for(int x = -draw; x <= draw; x++){
+			for(int y = 0; y < chunkLayers; y++){
+				for(int z = -draw; z <= draw; z++){
+					queue(new Chunk(x, y, z));
+				}
+			}
 		}
 	}
 
-	/** Calls the VBO render calls for all active chunks */
-	public void render(GL2 gl){
-		for(Chunk ch : chunkList){
-			gl.glPushMatrix();
-			gl.glTranslatef(ch.pos[0]*chunkSize, ch.pos[1]*chunkHeight, ch.pos[2]*chunkSize);
-			ch.render(gl);
-			gl.glPopMatrix();
-		}
-	}
-	
-	/** Load the next n chunks from the list of chunks ready to be loaded. Slow, has to build each chunk. */
-	public void loadNext(GL2 gl, int n){
-		while(!chunkLoad.isEmpty()&&n>0){
-			Chunk next =chunkLoad.remove(0);
-			next.createMesh(gl);
-			chunkList.add(next);
-			n--;
+	/** Draws all active chunks the camera can see. They're batched by MeshArena page, one glMultiDrawArrays each,
+	 * so the GL calls don't grow with the number of chunks. Chunks are queued nearest first, so pages are drawn
+	 * roughly front to back and the depth test throws away hidden fragments early.
+	 * With GUI.caveCulling, chunks hidden behind solid ground are skipped too, see searchVisible */
+	public void render(Frustum frustum){
+		culled = 0;
+		int n = GUI.caveCulling ? searchVisible(frustum) : -1;
+		if(n < 0){
+			n = 0;
+			for(int i = 0; i < chunks.capacity(); i++){
+				Chunk ch = chunks.valueAt(i);
+				if(ch == null||(chunks.stateAt(i)&ChunkMap.LOADED)==0||ch.isEmpty()){
+					continue;
+				}
+				if(inView(ch, frustum)){
+					n = addVisible(ch, frustum, n);
+				} else {
+					culled++;
+				}
+			}
+		}
+		Arrays.sort(drawOrder, 0, n);
+		drawn = n;
+		drawnVertices = 0;
+		backend.begin();
+		for(int i = 0; i < n; i++){
+			Chunk ch = visible[(int) drawOrder[i]];
+			drawnVertices += ch.getVertexCount();
+			ch.render(arena);
+		}
+		arena.flush();
+		backend.end();
+	}
+	
+	/** Does a chunk's box intersect the view */
+	private static boolean inView(Chunk c, Frustum frustum){
+		float x = c.pos[0]*chunkSize*len;
+		float y = c.pos[1]*chunkHeight*len;
+		float z = c.pos[2]*chunkSize*len;
+		return frustum.intersects(x, y, z, x + chunkSize*len, y + chunkHeight*len, z + chunkSize*len);
+	}
+	
+	/** Adds a chunk to the n visible chunks of this frame, returns the new count */
+	private int addVisible(Chunk c, Frustum frustum, int n){
+		if(n == visible.length){
+			visible = Arrays.copyOf(visible, n*2);
+			drawOrder = Arrays.copyOf(drawOrder, n*2);
+		}
+		// distance in the high bits, index in the low bits: sorting the longs sorts by distance
+		float d = frustum.distanceSq((c.pos[0] + 0.5f)*chunkSize*len, (c.pos[1] + 0.5f)*chunkHeight*len, (c.pos[2] + 0.5f)*chunkSize*len);
+		visible[n] = c;
+		drawOrder[n] = ((long) Float.floatToIntBits(d) << 32) | n;
+		return n+1;
+	}
+	
+	/** Finds the chunks that could be visible by searching outward from the camera's chunk, breadth first.
+	 * The search moves from a chunk to its neighbor only if the side it came in through sees that side through
+	 * air (Chunk.linksSides), the neighbor is in the view, and it doesn't move back against a direction it has
+	 * already gone, since it would be coming back toward the camera. Chunks that aren't built yet count as open.
+	 * Each chunk is reached once. No GL queries, it costs a few map lookups per chunk reached.
+	 * Fills visible and drawOrder and returns how many, or -1 if the camera's chunk isn't known */
+	private int searchVisible(Frustum frustum){
+		float[] eye = frustum.getEye();
+		int camX = toChunk(eye[0], chunkSize), camY = toChunk(eye[1], chunkHeight), camZ = toChunk(eye[2], chunkSize);
+		int frame = ++searchFrame;
+		int tail = 0;
+		if(camY >= 0&&camY < chunkLayers){
+			Chunk start = chunks.get(camX, camY, camZ);
+			if(start == null){
+				return -1;
+			}
+			start.visitFrame = frame;
+			start.visitFrom = -1;
+			start.visitDirs = 0;
+			searchQueue[tail++] = start;
+		} else {
+			// above or below the world: start from every chunk of the nearest layer in view, entered from outside
+			int layer = camY < 0 ? 0 : chunkLayers-1;
+			int from = camY < 0 ? 1 : 0;
+			for(int i = 0; i < chunks.capacity(); i++){
+				Chunk c = chunks.valueAt(i);
+				if(c == null||c.pos[1] != layer){
+					continue;
+				}
+				c.visitFrame = frame;
+				if(!inView(c, frustum)){
+					if((chunks.stateAt(i)&ChunkMap.LOADED)!=0&&!c.isEmpty()){
+						culled++;
+					}
+					continue;
+				}
+				c.visitFrom = from;
+				c.visitDirs = 1 << Chunk.opposite(from);
+				if(tail == searchQueue.length){
+					searchQueue = Arrays.copyOf(searchQueue, tail*2);
+				}
+				searchQueue[tail++] = c;
+			}
+		}
+		int n = 0;
+		for(int head = 0; head < tail; head++){
+			Chunk c = searchQueue[head];
+			boolean loaded = chunks.is(c, ChunkMap.LOADED);
+			if(loaded&&!c.isEmpty()){
+				n = addVisible(c, frustum, n);
+			}
+			for(int side = 0; side < 6; side++){
+				if((c.visitDirs & 1 << Chunk.opposite(side)) != 0){
+					continue; // back toward the camera
+				}
+				if(loaded&&c.visitFrom >= 0&&!c.linksSides(c.visitFrom, side)){
+					continue; // walled off inside this chunk
+				}
+				Chunk next = chunks.get(c.pos[0] + Chunk.OFFSET[side][0], c.pos[1] + Chunk.OFFSET[side][1], c.pos[2] + Chunk.OFFSET[side][2]);
+				if(next == null||next.visitFrame == frame){
+					continue;
+				}
+				next.visitFrame = frame;
+				if(!inView(next, frustum)){
+					if(chunks.is(next, ChunkMap.LOADED)&&!next.isEmpty()){
+						culled++;
+					}
+					continue;
+				}
+				next.visitFrom = Chunk.opposite(side);
+				next.visitDirs = c.visitDirs | 1 << side;
+				if(tail == searchQueue.length){
+					searchQueue = Arrays.copyOf(searchQueue, tail*2);
+				}
+				searchQueue[tail++] = next;
+			}
+		}
+		Arrays.fill(searchQueue, 0, tail, null); // don't keep unloaded chunks alive
+		return n;
+	}
+	
+	/** Commits block edits, hands queued chunks to the workers, then uploads the next n new chunks the workers
+	 * have finished. Only the upload happens here, so this is fast no matter how slow building a chunk is.
+	 * Remeshed chunks (edits, new neighbors, a new w) don't count against n. Instead they, and committing edits,
+	 * stop once GUI.editBudget milliseconds have been spent, and carry on next frame */
+	public void loadNext(int n){
+		long deadline = System.nanoTime() + GUI.editBudget*1000000L;
+		commitEdits(deadline);
+		submit();
+		Chunk next;
+		while((next = chunkReady.peek())!=null){
+			boolean loaded = chunks.is(next, ChunkMap.LOADED);
+			if(loaded ? System.nanoTime() > deadline : n == 0){
+				break;
+			}
+			chunkReady.poll();
+			if(finish(next)&&!loaded){
+				n--;
+			}
+		}
+		if(slicingStep&&chunkReslice.isEmpty()&&slicing==0&&remeshing==0){
+			// every chunk that changed has its new mesh, show them all in this frame
+			for(Chunk c : chunkHeld){
+				chunks.clear(c, ChunkMap.HELD);
+				c.upload(arena);
+			}
+			chunkHeld.clear();
+			slicingStep = false;
+		}
+	}
+	
+	/** Block at a world block position. Where no chunk is loaded, the terrain function's block */
+	public byte getBlock(int x, int y, int z){
+		int chunkX = Math.floorDiv(x, chunkSize), chunkY = Math.floorDiv(y, chunkHeight), chunkZ = Math.floorDiv(z, chunkSize);
+		Chunk c = findChunk(chunkX, chunkY, chunkZ);
+		if(c == null){
+			return terrain(x, y, z, sliceW);
+		}
+		return c.getBlock(x - chunkX*chunkSize, y - chunkY*chunkHeight, z - chunkZ*chunkSize);
+	}
+	
+	/** Changes the block at a world block position. Returns false if its chunk isn't loaded, the change is lost.
+	 * Cheap: the chunk is only marked dirty, and rebuilt once in the next frames however many edits it gets.
+	 * In 4D mode edits last until the slice moves. Must be called on the GL thread.
+	 * Throws IllegalArgumentException if type isn't a BlockType, loaded chunk or not */
+	public boolean setBlock(int x, int y, int z, byte type){
+		if(!BlockType.isValid(type)){
+			throw new IllegalArgumentException("not a block type: " + type);
+		}
+		int chunkX = Math.floorDiv(x, chunkSize), chunkY = Math.floorDiv(y, chunkHeight), chunkZ = Math.floorDiv(z, chunkSize);
+		Chunk c = findChunk(chunkX, chunkY, chunkZ);
+		if(c == null){
+			return false;
+		}
+		boolean wasDirty = c.isDirty();
+		if(c.setBlock(x - chunkX*chunkSize, y - chunkY*chunkHeight, z - chunkZ*chunkSize, type)){
+			if(!worldEdited){
+				worldEdited = true;
+				Snapshot.invalidate(snapshotFile); // stale now, even if this run doesn't keep one
+			}
+			if(!wasDirty){
+				chunkDirty.add(c);
+			}
+		}
+		return true;
+	}
+	
+	/** Sets every block in the box (x0,y0,z0)-(x1,y1,z1), corners included. Returns how many were in loaded chunks.
+	 * Throws IllegalArgumentException if type isn't a BlockType */
+	public int fill(int x0, int y0, int z0, int x1, int y1, int z1, byte type){
+		int count = 0;
+		for(int x = Math.min(x0, x1); x <= Math.max(x0, x1); x++){
+			for(int y = Math.min(y0, y1); y <= Math.max(y0, y1); y++){
+				for(int z = Math.min(z0, z1); z <= Math.max(z0, z1); z++){
+					if(setBlock(x, y, z, type)){
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+	
+	/** Packs the edits of dirty chunks and queues them, and the neighbors whose border they touched, to be remeshed.
+	 * Stops at the deadline (after at least one chunk), the rest wait for the next frame */
+	private void commitEdits(long deadline){
+		int done = 0;
+		while(done < chunkDirty.size()&&(done == 0||System.nanoTime() < deadline)){
+			Chunk c = chunkDirty.get(done++);
+			int sides = c.commitEdits();
+			remesh(c);
+			remeshNeighbors(c, sides);
+		}
+		chunkDirty.subList(0, done).clear();
+	}
+	
+	/** Queues the loaded neighbors on the sides set in a bitmask (as in Chunk.OFFSET) to be remeshed */
+	private void remeshNeighbors(Chunk c, int sides){
+		for(int side = 0; side < 6; side++){
+			if((sides & 1<<side) != 0){
+				Chunk other = findChunk(c.pos[0] + Chunk.OFFSET[side][0], c.pos[1] + Chunk.OFFSET[side][1], c.pos[2] + Chunk.OFFSET[side][2]);
+				if(other != null){
+					remesh(other); // its border faces were culled against the old blocks
+				}
+			}
+		}
+	}
+	
+	/** Moves the view to the slice of 4D terrain at w. Every loaded chunk is regenerated there on the workers
+	 * and the ones whose blocks changed are remeshed, while the old meshes keep being drawn. When the new meshes
+	 * are all built they replace the old ones in the same frame. If w changes again before that, the next slice
+	 * starts once this one is shown, going straight to the latest w. Does nothing unless GUI.fourD */
+	public void setSlice(int w){
+		if(GUI.fourD){
+			targetW = w;
+		}
+	}
+	
+	/** Position along w of the slice being shown or built */
+	public int getSlice(){
+		return sliceW;
+	}
+	
+	/** Hands pending reslices, remeshes, then queued chunks, to the workers until maxBuilding are in flight.
+	 * Remeshes wait while any chunk is being resliced, so each is meshed once against its neighbors' new blocks */
+	private void submit(){
+		if(!slicingStep&&targetW!=sliceW&&remeshing==0){
+			startSlice();
+		}
+		for(int i = 0; i < chunkReslice.size()&&building<maxBuilding;){
+			Chunk c = chunkReslice.get(i);
+			if(chunks.is(c, ChunkMap.BUILDING)){
+				i++;
+			} else {
+				chunkReslice.remove(i);
+				reslice(c);
+			}
+		}
+		if(!chunkReslice.isEmpty()||slicing>0){
+			return; // remeshes and loads wait for the slice
+		}
+		for(int i = 0; i < chunkRemesh.size()&&building<maxBuilding;){
+			Chunk c = chunkRemesh.get(i);
+			if(chunks.is(c, ChunkMap.BUILDING|ChunkMap.HELD)){
+				i++; // still building or holding a mesh, remesh it once it's back
+			} else {
+				chunkRemesh.remove(i);
+				chunks.clear(c, ChunkMap.REMESH);
+				build(c, false);
+			}
+		}
+		while(!chunkLoad.isEmpty()&&building<maxBuilding){
+			Chunk c = chunkLoad.poll();
+			if(!inRange(c)){
+				chunks.remove(c.pos[0], c.pos[1], c.pos[2]); // the camera moved away before it was built
+				cancelled++;
+				continue;
+			}
+			chunks.clear(c, ChunkMap.QUEUED);
+			build(c, true);
+		}
+	}
+	
+	/** Registers a new chunk and adds it to the load queue */
+	private void queue(Chunk c){
+		chunks.put(c, ChunkMap.QUEUED);
+		chunkLoad.add(c);
+	}
+	
+	/** Is the chunk within the draw distance of the camera's last known chunk */
+	private boolean inRange(Chunk c){
+		return Math.abs(c.pos[0]-lastpos[0])<=draw&&Math.abs(c.pos[2]-lastpos[1])<=draw;
+	}
+	
+	/** Reorders the load queue for the camera's position and view direction, and drops queued chunks that are
+	 * out of range now. Cheap, call it every few frames */
+	public void prioritize(float[] location, float yaw){
+		chunkLoad.setCamera(location[0]/(chunkSize*len), location[1]/(chunkHeight*len), location[2]/(chunkSize*len), yaw);
+		ArrayList<Chunk> dropped = new ArrayList<Chunk>();
+		chunkLoad.reprioritize(lastpos[0], lastpos[1], draw, dropped);
+		for(Chunk c : dropped){
+			chunks.remove(c.pos[0], c.pos[1], c.pos[2]);
 		}
+		cancelled += dropped.size();
 	}
 	
-	/** Unload the next n queued chunks. This is very fast, do as many as you want. */
+	/** Adds a loaded chunk to the remesh queue, unless it's already there */
+	private void remesh(Chunk c){
+		if(!chunks.is(c, ChunkMap.REMESH)){
+			chunks.set(c, ChunkMap.REMESH);
+			chunkRemesh.add(c);
+		}
+	}
+	
+	/** Starts building the slice at targetW: queues every loaded chunk to be regenerated there */
+	private void startSlice(){
+		sliceW = targetW;
+		slicingStep = true;
+		for(int i = 0; i < chunks.capacity(); i++){
+			Chunk c = chunks.valueAt(i);
+			if(c != null&&(chunks.stateAt(i)&ChunkMap.LOADED)!=0){
+				queueReslice(c);
+			}
+		}
+	}
+	
+	/** Adds a loaded chunk to the reslice queue, unless it's already there or already at sliceW */
+	private void queueReslice(Chunk c){
+		if(c.getW()!=sliceW&&!chunks.is(c, ChunkMap.RESLICE)){
+			chunks.set(c, ChunkMap.RESLICE);
+			chunkReslice.add(c);
+		}
+	}
+	
+	/** Regenerates a loaded chunk at sliceW on a worker thread, then queues it for finish to swap the blocks in */
+	private void reslice(final Chunk c){
+		chunks.set(c, ChunkMap.BUILDING);
+		building++;
+		slicing++;
+		final int w = sliceW;
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					c.reslice(w);
+				} catch (RuntimeException e) {
+					System.err.println("Failed to reslice chunk " + c.pos[0] + ", " + c.pos[1] + ", " + c.pos[2]);
+					e.printStackTrace();
+				} finally {
+					chunkReady.add(c);
+				}
+			}
+		});
+	}
+	
+	/** Generates (if new) and meshes a chunk on a worker thread, then queues it to be uploaded */
+	private void build(final Chunk c, final boolean generate){
+		chunks.set(c, ChunkMap.BUILDING);
+		building++;
+		if(!generate){
+			remeshing++;
+		}
+		c.setLod(generate ? lodLevel(distance(c)) : lodFor(c));
+		final int w = sliceW;
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if(generate){
+						generate(c, w);
+					}
+					c.buildMesh();
+				} catch (RuntimeException e) {
+					System.err.println("Failed to build chunk " + c.pos[0] + ", " + c.pos[1] + ", " + c.pos[2]);
+					e.printStackTrace();
+				} finally {
+					chunkReady.add(c);
+				}
+			}
+		});
+	}
+	
+	/** Fills a new chunk's blocks. Read from the region store if the chunk was generated or edited before,
+	 * otherwise generated and saved. Unedited uniform chunks are cheaper to generate than to read, so they aren't saved */
+	private void generate(Chunk c, int w){
+		if(store == null){
+			c.generate(w);
+			return;
+		}
+		BlockStorage stored = store.read(c.pos[0], c.pos[1], c.pos[2]);
+		if(stored != null){
+			c.load(stored);
+			return;
+		}
+		c.generate(w);
+		if(!c.isUniform()){
+			store.write(c.pos[0], c.pos[1], c.pos[2], c.getBlocks());
+		}
+	}
+	
+	/** Uploads a chunk the workers finished. New chunks are linked to their neighbors and start being drawn.
+	 * Resliced chunks get their new blocks, and are remeshed with their neighbors if anything changed.
+	 * Returns whether anything was uploaded */
+	private boolean finish(Chunk c){
+		chunks.clear(c, ChunkMap.BUILDING);
+		building--;
+		if(chunks.is(c, ChunkMap.RESLICE)){
+			chunks.clear(c, ChunkMap.RESLICE);
+			slicing--;
+			int sides = c.applySlice();
+			if(sides >= 0){
+				remesh(c);
+				remeshNeighbors(c, sides);
+			}
+			return false;
+		}
+		if(chunks.is(c, ChunkMap.LOADED)){
+			remeshing--;
+			if(slicingStep){
+				chunks.set(c, ChunkMap.HELD); // keep drawing the old mesh until the whole slice is ready
+				chunkHeld.add(c);
+				return false;
+			}
+			if(capturing){
+				snapshot.capture(c);
+			}
+			c.upload(arena);
+			updateLod(c); // the camera may have moved while it was building
+			return true;
+		}
+		if(capturing){
+			snapshot.capture(c);
+		}
+		c.upload(arena);
+		link(c);
+		verticesSaved += c.getVerticesSaved();
+		chunks.set(c, ChunkMap.LOADED);
+		loadedChunks++;
+		if(!inRange(c)){
+			unload(c); // the camera left while it was building, the strip it was in is already gone
+		} else {
+			queueReslice(c); // built for a w the view has since left
+			updateLod(c);
+		}
+		return true;
+	}
+	
+	/** Connects a newly built chunk with its loaded neighbors. Chunks are meshed before they're linked, so either
+	 * side may have culled its border against the terrain function. That side only gets remeshed if the other's
+	 * border doesn't match what the terrain function said, or was generated at a different w, or it's a coarse
+	 * mesh that drew skirts where it can now cull against the neighbor's cells. */
+	private void link(Chunk c){
+		for(int side = 0; side < 6; side++){
+			Chunk other = findChunk(c.pos[0] + Chunk.OFFSET[side][0], c.pos[1] + Chunk.OFFSET[side][1], c.pos[2] + Chunk.OFFSET[side][2]);
+			if(other != null){
+				int back = Chunk.opposite(side);
+				c.setNeighbor(side, other);
+				other.setNeighbor(back, c);
+				if(other.isPredicted(back) && (!c.matchesTerrain(side) || other.getPredictedW() != c.getW() || other.getLod() > 0)){
+					remesh(other);
+				}
+				if(c.isPredicted(side) && (!other.matchesTerrain(back) || c.getPredictedW() != other.getW() || c.getLod() > 0)){
+					remesh(c);
+				}
+			}
+		}
+	}
+	
+	/** Finds a loaded chunk by chunk position, or null if it isn't loaded */
+	private Chunk findChunk(int x, int y, int z){
+		Chunk c = chunks.get(x, y, z);
+		return (c != null && chunks.is(c, ChunkMap.LOADED)) ? c : null;
+	}
+	
+	/** Unload the next n queued chunks, giving their Vertex Buffers back. This is very fast, do as many as you want.
+	 * Must be called on the GL thread. */
 	public void unloadNext(int n){
-		while(!chunkUnload.isEmpty()&&n>0){
-			Chunk c = chunkUnload.remove(0);
-			chunkList.remove(c);
-			c.delete(); // call finalize and hope it actually gets deleted
+		for(int i = 0; i < chunkUnload.size()&&n>0;){
+			Chunk c = chunkUnload.get(i);
+			if(!chunks.is(c, ChunkMap.UNLOADING)){
+				chunkUnload.remove(i); // back in range and the unload was cancelled, or already unloaded
+				continue;
+			}
+			if(chunks.is(c, ChunkMap.BUILDING|ChunkMap.HELD)){
+				i++; // a worker is still remeshing it, or its mesh is held for the slice, unload it once it's back
+				continue;
+			}
+			chunkUnload.remove(i);
+			if(chunks.is(c, ChunkMap.REMESH)){
+				chunkRemesh.remove(c);
+			}
+			if(c.isDirty()){
+				chunkDirty.remove(c);
+				c.commitEdits();
+			}
+			if(c.isModified()&&store != null){
+				store.write(c.pos[0], c.pos[1], c.pos[2], c.getBlocks()); // keep the edits
+			}
+			if(chunks.is(c, ChunkMap.RESLICE)){
+				chunkReslice.remove(c);
+			}
+			if(chunks.is(c, ChunkMap.LOADED)){
+				loadedChunks--;
+			}
+			chunks.remove(c.pos[0], c.pos[1], c.pos[2]);
+			c.unlink();
+			c.delete(arena);
 			n--;
 		}
 	}
 	
-	/** Check to see if any chunks need to be unloaded. Must be called before updateLoad. */
+	/** Check to see if any chunks need to be unloaded. When the camera moves to another chunk, only the strip
+	 * of columns that left the draw distance is looked at, so this costs O(draw distance), not O(draw distance^2) */
 	public void updateUnload(double x, double z){
-		int chunkX = (int) (x)/chunkSize;
-		int chunkZ = (int) (z)/chunkSize;
-		if(Math.abs(chunkX-lastpos[0])>=1||Math.abs(chunkZ-lastpos[1])>=1){
-			for(Chunk c : chunkList){
-				if(Math.abs(chunkX-c.pos[0])>draw||Math.abs(chunkZ-c.pos[2])>draw){
-					chunkUnload.add(c);
-				} else {
-					Integer[] temp = {c.pos[0], c.pos[1], c.pos[2]};
-					loc.add(temp);
-				}
-			}
-			ready = true;
+		int chunkX = toChunk(x, chunkSize);
+		int chunkZ = toChunk(z, chunkSize);
+		if(chunkX!=lastpos[0]||chunkZ!=lastpos[1]){
+			int[] strip = strip(lastpos[0], lastpos[1], chunkX, chunkZ);
 			lastpos[0] = chunkX;
 			lastpos[1] = chunkZ;
+			for(int i = 1; i < strip[0]; i += 2){
+				for(int y = 0; y < chunkLayers; y++){
+					Chunk c = chunks.get(strip[i], y, strip[i+1]);
+					if(c != null&&chunks.is(c, ChunkMap.LOADED)){
+						unload(c);
+					} // queued chunks are dropped when they come up, building ones when they finish
+				}
+			}
 		}
 	}
 	
-	/** Checks to see if any chunks need to be loaded, and add them to the loading queue */
+	/** Checks to see if any chunks need to be loaded, and add them to the loading queue. Like updateUnload,
+	 * only the strip of columns that came into the draw distance since the last call is looked at */
 	public void updateLoad(double x, double z){
-		if(ready){
-		int chunkX = (int) (x)/chunkSize;
-		int chunkZ = (int) (z)/chunkSize;
-		HashSet<Integer[]> check = new HashSet<Integer[]>();
-		if(!loc.isEmpty()){
-			for(int i = -draw; i <= draw; i++){
-				for(int y = 0; y < 4; y++){
-					for(int j = -draw; j <= draw; j++){
-						Integer[] temp = {chunkX+i,y,chunkZ+j};
-						check.add(temp);
+		int chunkX = toChunk(x, chunkSize);
+		int chunkZ = toChunk(z, chunkSize);
+		if(chunkX!=loadpos[0]||chunkZ!=loadpos[1]){
+			int[] strip = strip(chunkX, chunkZ, loadpos[0], loadpos[1]);
+			loadpos[0] = chunkX;
+			loadpos[1] = chunkZ;
+			for(int i = 0; i < chunks.capacity(); i++){
+				Chunk c = chunks.valueAt(i);
+				if(c != null&&(chunks.stateAt(i)&ChunkMap.LOADED)!=0&&(chunks.stateAt(i)&ChunkMap.BUILDING)==0){
+					updateLod(c); // building chunks are checked when they finish
+				}
+			}
+			for(int i = 1; i < strip[0]; i += 2){
+				for(int y = 0; y < chunkLayers; y++){
+					Chunk c = chunks.get(strip[i], y, strip[i+1]);
+					if(c == null){
+						queue(new Chunk(strip[i], y, strip[i+1]));
+					} else if(chunks.is(c, ChunkMap.UNLOADING)){
+						chunks.clear(c, ChunkMap.UNLOADING); // came back before it was unloaded, keep it
 					}
 				}
 			}
-			for(Chunk c : chunkLoad){
-				Integer[] temp = {c.pos[0], c.pos[1], c.pos[2]};
-				loc.add(temp);
+		}
+	}
+	
+	/** Queues a loaded chunk to be remeshed if it should be drawn at another level of detail now. Its old mesh
+	 * keeps being drawn until the new one is uploaded. Neighbors with coarse meshes are remeshed too, they cull
+	 * their border against it or draw skirts depending on its level. Must not be called while the chunk is building */
+	private void updateLod(Chunk c){
+		int lod = lodFor(c);
+		if(lod != c.getLod()){
+			c.setLod(lod);
+			remesh(c);
+			for(int side = 2; side < 6; side++){ // levels only change across columns
+				Chunk other = findChunk(c.pos[0] + Chunk.OFFSET[side][0], c.pos[1], c.pos[2] + Chunk.OFFSET[side][2]);
+				if(other != null&&other.getLod() > 0){
+					remesh(other);
+				}
+			}
+		}
+	}
+	
+	/** Level of detail a chunk should be drawn at. It only leaves its current level once it's LOD_HYSTERESIS
+	 * chunks past the switch distance */
+	private int lodFor(Chunk c){
+		int d = distance(c);
+		int current = c.getLod();
+		int coarser = lodLevel(d - LOD_HYSTERESIS);
+		int finer = lodLevel(d + LOD_HYSTERESIS);
+		if(coarser > current){
+			return coarser;
+		}
+		if(finer < current){
+			return finer;
+		}
+		return current;
+	}
+	
+	/** Distance in chunks from the camera's chunk to a chunk's column, along x or z whichever is further */
+	private int distance(Chunk c){
+		return Math.max(Math.abs(c.pos[0]-loadpos[0]), Math.abs(c.pos[2]-loadpos[1]));
+	}
+	
+	/** Level of detail for a chunk at a distance, without hysteresis. Always 0 unless GUI.lod */
+	private static int lodLevel(int distance){
+		int lod = 0;
+		while(GUI.lod&&lod < LOD_MAX&&distance >= LOD_DISTANCE[lod]){
+			lod++;
+		}
+		return lod;
+	}
+	
+	/** Coarsest level whose cells divide the chunk evenly, up to LOD_DISTANCE.length */
+	private static int maxLod(){
+		int lod = 0;
+		while(lod < LOD_DISTANCE.length&&chunkSize % (2 << lod) == 0&&chunkHeight % (2 << lod) == 0){
+			lod++;
+		}
+		return lod;
+	}
+	
+	/** Queues a loaded chunk to be unloaded, unless it already is */
+	private void unload(Chunk c){
+		if(!chunks.is(c, ChunkMap.UNLOADING)){
+			chunks.set(c, ChunkMap.UNLOADING);
+			chunkUnload.add(c);
+		}
+	}
+	
+	/** Columns within the draw distance of chunk (fromX, fromZ) but not of (toX, toZ). Returned as
+	 * {length, x0, z0, x1, z1, ...} where length is the index after the last value. Walks only the strips,
+	 * so a move of one chunk costs O(draw) */
+	private int[] strip(int fromX, int fromZ, int toX, int toZ){
+		int[] out = {1};
+		for(int x = fromX-draw; x <= fromX+draw; x++){
+			if(Math.abs(x-toX)>draw){
+				out = addColumns(out, x, fromZ-draw, fromZ+draw); // the whole row left
+			} else {
+				// only the ends of the row outside the other square
+				out = addColumns(out, x, fromZ-draw, Math.min(fromZ+draw, toZ-draw-1));
+				out = addColumns(out, x, Math.max(fromZ-draw, toZ+draw+1), fromZ+draw);
+			}
+		}
+		return out;
+	}
+	
+	/** Appends columns (x, zLow) to (x, zHigh) to a list from strip */
+	private static int[] addColumns(int[] out, int x, int zLow, int zHigh){
+		for(int z = zLow; z <= zHigh; z++){
+			if(out[0]+2 > out.length){
+				out = Arrays.copyOf(out, Math.max(64, out.length*2));
 			}
-			for(Chunk c : chunkUnload){
-				Integer[] temp = {c.pos[0], c.pos[1], c.pos[2]};
-				loc.add(temp);
+			out[out[0]++] = x;
+			out[out[0]++] = z;
+		}
+		return out;
+	}
+	
+	/** Chunk coordinate of a world coordinate. Rounds down, so negative coordinates land in the right chunk */
+	public static int toChunk(double coord, int blocks){
+		return (int) Math.floor(coord/(blocks*len));
+	}
+
+	/** Vertex Buffer and arena counters. Leaked counts arena slots handed out that no loaded chunk holds, which
+	 * should be 0. Call on the GL thread */
+	public String bufferReport(){
+		return arena.report() + "\nVertex buffers: " + vbos.getLive() + " live, " + vbos.getFree() + " free, " + getLeaked()
+				+ " leaked, " + vbos.getCreated() + " created, " + vbos.getReused() + " reused, " + vbos.getDeleted() + " deleted";
+	}
+	
+	/** Arena slots handed out that no loaded chunk holds. Anything but 0 is a leak. Call on the GL thread */
+	public int getLeaked(){
+		int held = 0;
+		for(int i = 0; i < chunks.capacity(); i++){
+			Chunk c = chunks.valueAt(i);
+			if(c != null&&(chunks.stateAt(i)&ChunkMap.LOADED)!=0&&c.hasBuffer()){
+				held++;
 			}
-			check.removeAll(loc);
-			for(Integer[] i : check){
-				chunkLoad.add(new Chunk(i[0], i[1], i[2]));
+		}
+		return arena.getSlots()-held;
+	}
+	
+	/** Is nothing waiting to be built, uploaded, remeshed or unloaded */
+	public boolean isIdle(){
+		return chunkLoad.isEmpty()&&building == 0&&chunkReady.isEmpty()&&chunkRemesh.isEmpty()&&chunkUnload.isEmpty()
+				&&chunkDirty.isEmpty()&&chunkReslice.isEmpty()&&chunkHeld.isEmpty();
+	}
+	
+	/** Region store counters, or a note that chunks aren't saved */
+	public String storeReport(){
+		return store != null ? store.report() : "Region store: off";
+	}
+	
+	/** Opens the region store for the current chunk shape, a folder per shape since the region files only hold one */
+	private static RegionStore openStore(){
+		return new RegionStore(new File("world", chunkSize + "x" + chunkHeight + "x" + chunkLayers));
+	}
+	
+	/** Gives back every chunk's arena slot and deletes all Vertex Buffers, free ones included. Call once on the GL
+	 * thread, while the context still exists, when the program exits. Nothing can be drawn afterwards */
+	public void releaseBuffers(){
+		for(int i = 0; i < chunks.capacity(); i++){
+			Chunk c = chunks.valueAt(i);
+			if(c != null){
+				c.releaseBuffer(arena);
 			}
-			loc = new HashSet<Integer[]>();
 		}
-		ready = false;
+		vbos.trim();
+	}
+	
+	/** Saves the snapshot and the edited chunks still loaded, finishes pending writes and closes the region files.
+	 * Call once, when the program exits and nothing else uses the chunks */
+	public void close(){
+		if(snapshot != null){
+			snapshot.close(worldEdited);
+		}
+		if(store != null){
+			for(int i = 0; i < chunks.capacity(); i++){
+				Chunk c = chunks.valueAt(i);
+				if(c != null&&(chunks.stateAt(i)&ChunkMap.LOADED)!=0){
+					c.commitEdits();
+					if(c.isModified()){
+						store.write(c.pos[0], c.pos[1], c.pos[2], c.getBlocks());
+					}
+				}
+			}
+			store.close();
+		}
+	}
+	
+	/** Heap used by the blocks of every chunk, against what the same blocks would take as byte[][][] arrays */
+	public String blockReport(){
+		int count = 0;
+		int uniform = 0;
+		long bytes = 0;
+		for(int i = 0; i < chunks.capacity(); i++){
+			Chunk c = chunks.valueAt(i);
+			if(c != null&&(chunks.stateAt(i)&ChunkMap.LOADED)!=0){
+				count++;
+				bytes += c.blockMemory();
+				if(c.isUniform()){
+					uniform++;
+				}
+			}
+		}
+		long unpacked = count*BlockStorage.unpackedBytes();
+		return "Block storage: " + count + " chunks (" + uniform + " uniform), " + bytes/1024 + " KB, " + unpacked/1024 + " KB unpacked ("
+				+ (bytes > 0 ? String.format("%.1f", (double) unpacked/bytes) : "-") + "x smaller)";
+	}
+	
+	/** Chunks uploaded and not unloaded yet */
+	public int getLoaded(){
+		return loadedChunks;
+	}
+	
+	/** Bytes of Vertex Buffer memory allocated for chunk meshes, arena pages and free buffers both */
+	public long getVboBytes(){
+		return vbos.getBytes();
+	}
+	
+	/** Chunks restored from the snapshot at startup instead of built, 0 on a cold start */
+	public int getRestored(){
+		return restored;
+	}
+	
+	/** Chunks drawn last frame */
+	public int getDrawn(){
+		return drawn;
+	}
+	
+	/** The chunks drawn last frame, nearest first, for tests */
+	Chunk[] getDrawnChunks(){
+		Chunk[] result = new Chunk[drawn];
+		for(int i = 0; i < drawn; i++){
+			result[i] = visible[(int) drawOrder[i]];
+		}
+		return result;
+	}
+	
+	/** Vertices drawn last frame, a third of them triangles */
+	public long getDrawnVertices(){
+		return drawnVertices;
+	}
+	
+	/** Number of loaded chunks drawn at each level of detail, as "lod 0: n, lod 1: n, ...". Call on the GL thread */
+	public String lodReport(){
+		int[] counts = new int[LOD_MAX+1];
+		for(int i = 0; i < chunks.capacity(); i++){
+			Chunk c = chunks.valueAt(i);
+			if(c != null&&(chunks.stateAt(i)&ChunkMap.LOADED)!=0&&!c.isEmpty()){
+				counts[c.getDrawnLod()]++;
+			}
+		}
+		StringBuilder sb = new StringBuilder("Chunks by level of detail:");
+		for(int lod = 0; lod <= LOD_MAX; lod++){
+			sb.append(lod == 0 ? " " : ", ").append("lod ").append(lod).append(": ").append(counts[lod]);
+		}
+		return sb.toString();
+	}
+	
+	/** Loaded chunks with something to draw that the visibility search didn't reach last frame, because solid
+	 * blocks wall them off from the camera. Call on the GL thread */
+	public int getHidden(){
+		int meshed = 0;
+		for(int i = 0; i < chunks.capacity(); i++){
+			Chunk c = chunks.valueAt(i);
+			if(c != null&&(chunks.stateAt(i)&ChunkMap.LOADED)!=0&&!c.isEmpty()){
+				meshed++;
+			}
+		}
+		return GUI.caveCulling ? Math.max(0, meshed - drawn - culled) : 0;
+	}
+	
+	/** Chunks skipped last frame because they were outside the view */
+	public int getCulled(){
+		return culled;
+	}
+	
+	/** Chunks waiting in the load queue */
+	public int getQueued(){
+		return chunkLoad.size();
+	}
+	
+	/** Queued chunks dropped so far because they left the draw distance before being built */
+	public long getCancelled(){
+		return cancelled;
+	}
+	
+	/** Total number of vertices greedy meshing has saved so far */
+	public long getVerticesSaved(){
+		return verticesSaved;
+	}
+
+	/** Block the terrain generates at a world block position, in the slice at w (ignored unless GUI.fourD).
+	 * Everything below the world is solid and everything above the top layer is air, so faces at the world's
+	 * edges are culled consistently. */
+	public static byte terrain(int x, int y, int z, int w){
+		if(y < 0 || y >= chunkLayers*chunkHeight){
+			return terrain(y, 0);
+		}
+		if(GUI.fourD){
+			return terrain(y, sliceHeight(SimplexNoise.noise(z*SLICE_SCALE, y*SLICE_SCALE, x*SLICE_SCALE, w*SLICE_SCALE)));
+		}
+		return terrain(y, heights.height(x, z));
+	}
+	
+	/** Shared blocks for a chunk that lies entirely above or entirely below the surface, decided from the range
+	 * of surface heights over its column without generating it. Null if the chunk has to be generated */
+	public static BlockStorage uniformBlocks(int chunkX, int layer, int chunkZ){
+		if(layer < 0 || layer >= chunkLayers){
+			return null;
+		}
+		double lowest, highest;
+		if(GUI.fourD){
+			// simplex noise stays within about -1 to 1, leave a margin
+			lowest = sliceHeight(-1.2);
+			highest = sliceHeight(1.2);
+		} else {
+			lowest = heights.lowest(chunkX, chunkZ);
+			highest = heights.highest(chunkX, chunkZ);
+		}
+		int bottom = layer*chunkHeight;
+		if(bottom > highest){
+			return BlockStorage.AIR;
+		}
+		if(bottom + chunkHeight - 1 <= lowest){
+			return SolidLayers.LAYERS[layer];
+		}
+		return null;
+	}
+	
+	/** Blocks of a chunk entirely below the surface, one per layer, shared by every such chunk of that layer.
+	 * Built the first time they're used, when BlockStorage is sure to be initialized */
+	private static class SolidLayers {
+		static final BlockStorage[] LAYERS = solidLayers();
+	}
+	
+	/** Blocks of a chunk in each layer when the surface is above all of it. Only depends on y */
+	private static BlockStorage[] solidLayers(){
+		BlockStorage[] layers = new BlockStorage[chunkLayers];
+		byte[] flat = new byte[BlockStorage.VOLUME];
+		for(int layer = 0; layer < chunkLayers; layer++){
+			for(int x = 0, i = 0; x < chunkSize; x++){
+				for(int y = 0; y < chunkHeight; y++){
+					for(int z = 0; z < chunkSize; z++, i++){
+						flat[i] = terrain(y + layer*chunkHeight, chunkLayers*chunkHeight);
+					}
+				}
+			}
+			layers[layer] = BlockStorage.shared(flat);
+		}
+		return layers;
+	}
+	
+	/** Surface height for 4D terrain given the noise at a block. It changes with y, so the surface folds into
+	 * overhangs and caves. Chunk.generate samples the same noise with the axes in the same (z, y, x, w) order */
+	public static double sliceHeight(double noise){
+		return 24*noise + 32;
+	}
+	
+	/** Block the terrain generates at world height y in a column whose surface is at the given height */
+	public static byte terrain(int y, double height){
+		if(y < 0){
+			return 1;
+		}
+		if(y >= chunkLayers*chunkHeight || y > height){
+			return 0;
 		}
+		return (byte) (2.7*y/13+1);
 	}
 
 	/** Layers simplex noise to give better terrain map */
 	public static double map2D(double x, double y){
-		double temp = 10*SimplexNoise.noise(((float) x)/30, ((float) y)/30);
-		temp += 25*SimplexNoise.noise(((float) y+100)/120, ((float) x-100)/100)+36;
+		double temp = 10*SimplexNoise.noise(x/30, y/30);
+		temp += 25*SimplexNoise.noise((y+100)/120, (x-100)/100)+36;
 		return temp;
 	}
 }
@@ -0,0 +1,196 @@
+package julien.voxel;
+
+/**
+ * Hash map from chunk position to chunk, with a few state flags per chunk. Positions are packed into a long,
+ * so nothing is boxed, and lookups (including the six neighbor lookups meshing needs) are a hash and a short probe.
+ * Uses open addressing with linear probing, removals shift later entries back instead of leaving tombstones.
+ * Not thread safe, ChunkManager only touches it on the GL thread.
+ */
+public class ChunkMap {
+	/** Waiting in the load queue */
+	public static final int QUEUED = 1;
+	/** Handed to a worker, not uploaded yet */
+	public static final int BUILDING = 2;
+	/** Uploaded and being drawn */
+	public static final int LOADED = 4;
+	/** Waiting in the unload queue */
+	public static final int UNLOADING = 8;
+	/** Waiting in the remesh queue */
+	public static final int REMESH = 16;
+	/** Waiting for, or being, regenerated at a new position along w */
+	public static final int RESLICE = 32;
+	/** Remeshed for a new w, holding its mesh until the whole slice is ready */
+	public static final int HELD = 64;
+	/** Packed chunk positions */
+	private long[] keys;
+	/** Chunks, null marks an empty slot */
+	private Chunk[] values;
+	/** State flags of each chunk */
+	private byte[] states;
+	/** Number of chunks in the map */
+	private int size = 0;
+	/** Capacity - 1, capacity is a power of two */
+	private int mask;
+
+	/** Creates a map that holds the given number of chunks before it has to grow */
+	public ChunkMap(int expected){
+		int capacity = 16;
+		while(capacity < expected*2){
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		values = new Chunk[capacity];
+		states = new byte[capacity];
+		mask = capacity-1;
+	}
+
+	/** Packs a chunk position into a long, 21 bits per axis */
+	public static long key(int x, int y, int z){
+		return ((long) (x & 0x1FFFFF) << 42) | ((long) (y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+	}
+
+	/** The chunk at a position, or null */
+	public Chunk get(int x, int y, int z){
+		int i = find(key(x, y, z));
+		return i >= 0 ? values[i] : null;
+	}
+
+	/** Is there a chunk at a position */
+	public boolean contains(int x, int y, int z){
+		return find(key(x, y, z)) >= 0;
+	}
+
+	/** Adds a chunk with the given state flags, replacing any chunk at the same position */
+	public void put(Chunk c, int state){
+		long k = c.key();
+		int i = find(k);
+		if(i < 0){
+			if((size+1)*2 > values.length){
+				grow();
+				i = find(k);
+			}
+			i = -1 - i;
+			size++;
+		}
+		keys[i] = k;
+		values[i] = c;
+		states[i] = (byte) state;
+	}
+
+	/** Removes the chunk at a position, returns it or null */
+	public Chunk remove(int x, int y, int z){
+		int i = find(key(x, y, z));
+		if(i < 0){
+			return null;
+		}
+		Chunk removed = values[i];
+		// Shift following entries of the probe run back, so no lookup ever stops early at the gap
+		int j = i;
+		while(true){
+			j = (j+1) & mask;
+			if(values[j] == null){
+				break;
+			}
+			int home = hash(keys[j]) & mask;
+			boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+			if(!stays){
+				keys[i] = keys[j];
+				values[i] = values[j];
+				states[i] = states[j];
+				i = j;
+			}
+		}
+		values[i] = null;
+		states[i] = 0;
+		size--;
+		return removed;
+	}
+
+	/** State flags of a chunk, 0 if it isn't in the map (or another chunk has taken its place) */
+	public int getState(Chunk c){
+		int i = find(c.key());
+		return (i >= 0 && values[i] == c) ? states[i] : 0;
+	}
+
+	/** Does the chunk have any of the given flags */
+	public boolean is(Chunk c, int flags){
+		return (getState(c) & flags) != 0;
+	}
+
+	/** Sets state flags on a chunk in the map */
+	public void set(Chunk c, int flags){
+		int i = find(c.key());
+		if(i >= 0 && values[i] == c){
+			states[i] |= flags;
+		}
+	}
+
+	/** Clears state flags on a chunk in the map */
+	public void clear(Chunk c, int flags){
+		int i = find(c.key());
+		if(i >= 0 && values[i] == c){
+			states[i] &= ~flags;
+		}
+	}
+
+	/** Number of chunks in the map */
+	public int size(){
+		return size;
+	}
+
+	/** Number of slots. Iterate with valueAt and stateAt, skipping null slots. Don't add or remove while iterating */
+	public int capacity(){
+		return values.length;
+	}
+
+	/** The chunk in a slot, or null */
+	public Chunk valueAt(int slot){
+		return values[slot];
+	}
+
+	/** State flags of the chunk in a slot */
+	public int stateAt(int slot){
+		return states[slot];
+	}
+
+	/** Slot holding the key, or -1 - the empty slot where it would go */
+	private int find(long k){
+		int i = hash(k) & mask;
+		while(values[i] != null){
+			if(keys[i] == k){
+				return i;
+			}
+			i = (i+1) & mask;
+		}
+		return -1 - i;
+	}
+
+	/** Doubles the capacity and reinserts everything */
+	private void grow(){
+		long[] oldKeys = keys;
+		Chunk[] oldValues = values;
+		byte[] oldStates = states;
+		keys = new long[oldKeys.length*2];
+		values = new Chunk[oldValues.length*2];
+		states = new byte[oldStates.length*2];
+		mask = values.length-1;
+		for(int i = 0; i < oldValues.length; i++){
+			if(oldValues[i] != null){
+				int j = -1 - find(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+				states[j] = oldStates[i];
+			}
+		}
+	}
+
+	/** Mixes all bits of the key, neighboring positions would otherwise cluster */
+	private static int hash(long k){
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return (int) k;
+	}
+}
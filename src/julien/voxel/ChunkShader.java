@@ -0,0 +1,122 @@
+package julien.voxel;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+/**
+ * Shader program that draws chunk meshes from the packed vertex format described by Chunk.VERTEX_SIZE.
+ * The fixed function pipeline can't read byte positions or look up a normal and color from an index,
+ * so this decodes them in the vertex shader. Lighting copies what the fixed function pipeline did before:
+ * the default GL_LIGHT0 (a white light along the view direction), 0.2 global ambient, and GL_COLOR_MATERIAL.
+ */
+public class ChunkShader {
+	/** Attribute index the packed vertex is bound to */
+	public static final int ATTRIB_VERTEX = 0;
+	/** Vertex shader: unpacks position, side and BlockType */
+	private static final String VERTEX_SOURCE =
+		"#version 120\n" +
+		"attribute vec4 packed;\n" +
+		"uniform vec3 colors[16];\n" +
+		"uniform float len;\n" +
+		"uniform vec3 origin;\n" +
+		"uniform bool lighting;\n" +
+		"const vec3 normals[6] = vec3[6](vec3(0.0,1.0,0.0), vec3(0.0,-1.0,0.0), vec3(0.0,0.0,-1.0),\n" +
+		"                                vec3(0.0,0.0,1.0), vec3(-1.0,0.0,0.0), vec3(1.0,0.0,0.0));\n" +
+		"void main(){\n" +
+		"  float side = floor(packed.w/16.0);\n" +
+		"  vec3 color = colors[int(packed.w - side*16.0)];\n" +
+		"  if(lighting){\n" +
+		"    vec3 n = normalize(gl_NormalMatrix*normals[int(side)]);\n" +
+		"    color *= 0.2 + max(n.z, 0.0);\n" +
+		"  }\n" +
+		"  gl_FrontColor = vec4(color, 1.0);\n" +
+		"  gl_Position = gl_ModelViewProjectionMatrix*vec4(packed.xyz*len + origin, 1.0);\n" +
+		"}\n";
+	/** Fragment shader: passes the color through */
+	private static final String FRAGMENT_SOURCE =
+		"#version 120\n" +
+		"void main(){\n" +
+		"  gl_FragColor = gl_Color;\n" +
+		"}\n";
+	/** Program ID assigned by openGL */
+	private int program;
+	/** Location of the origin uniform */
+	private int origin;
+
+	/** Compiles and links the program, and sets the uniforms that never change */
+	public ChunkShader(GL2 gl){
+		int vertex = compile(gl, GL2.GL_VERTEX_SHADER, VERTEX_SOURCE);
+		int fragment = compile(gl, GL2.GL_FRAGMENT_SHADER, FRAGMENT_SOURCE);
+		program = gl.glCreateProgram();
+		gl.glAttachShader(program, vertex);
+		gl.glAttachShader(program, fragment);
+		gl.glBindAttribLocation(program, ATTRIB_VERTEX, "packed");
+		gl.glLinkProgram(program);
+		int[] status = new int[1];
+		gl.glGetProgramiv(program, GL2.GL_LINK_STATUS, status, 0);
+		if(status[0] == GL.GL_FALSE){
+			throw new IllegalStateException("Chunk shader failed to link: " + programLog(gl, program));
+		}
+		gl.glDeleteShader(vertex); // flagged for deletion, freed along with the program
+		gl.glDeleteShader(fragment);
+
+		BlockType[] types = BlockType.values();
+		float[] colors = new float[16*3];
+		for(int i = 0; i < types.length; i++){
+			colors[i*3] = types[i].r;
+			colors[i*3+1] = types[i].g;
+			colors[i*3+2] = types[i].b;
+		}
+		gl.glUseProgram(program);
+		gl.glUniform3fv(gl.glGetUniformLocation(program, "colors"), 16, colors, 0);
+		gl.glUniform1f(gl.glGetUniformLocation(program, "len"), ChunkManager.len);
+		gl.glUniform1i(gl.glGetUniformLocation(program, "lighting"), GUI.lighting ? 1 : 0);
+		origin = gl.glGetUniformLocation(program, "origin");
+		gl.glUseProgram(0);
+	}
+
+	/** Binds the program and enables the vertex attribute. Chunks can be rendered until release is called */
+	public void use(GL2 gl){
+		gl.glUseProgram(program);
+		gl.glEnableVertexAttribArray(ATTRIB_VERTEX);
+	}
+
+	/** Sets the world position packed vertex positions are relative to, the corner of a MeshArena region.
+	 * The program must be in use */
+	public void setOrigin(GL2 gl, float x, float y, float z){
+		gl.glUniform3f(origin, x, y, z);
+	}
+
+	/** Restores the fixed function pipeline */
+	public void release(GL2 gl){
+		gl.glDisableVertexAttribArray(ATTRIB_VERTEX);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0); // reset bound buffer
+		gl.glUseProgram(0);
+	}
+
+	/** Compiles a single shader stage, throws with the compiler log if it fails */
+	private static int compile(GL2 gl, int type, String source){
+		int shader = gl.glCreateShader(type);
+		gl.glShaderSource(shader, 1, new String[] {source}, null);
+		gl.glCompileShader(shader);
+		int[] status = new int[1];
+		gl.glGetShaderiv(shader, GL2.GL_COMPILE_STATUS, status, 0);
+		if(status[0] == GL.GL_FALSE){
+			int[] length = new int[1];
+			gl.glGetShaderiv(shader, GL2.GL_INFO_LOG_LENGTH, length, 0);
+			byte[] log = new byte[Math.max(length[0], 1)];
+			gl.glGetShaderInfoLog(shader, log.length, null, 0, log, 0);
+			throw new IllegalStateException("Chunk shader failed to compile: " + new String(log).trim());
+		}
+		return shader;
+	}
+
+	/** Reads a program's info log */
+	private static String programLog(GL2 gl, int program){
+		int[] length = new int[1];
+		gl.glGetProgramiv(program, GL2.GL_INFO_LOG_LENGTH, length, 0);
+		byte[] log = new byte[Math.max(length[0], 1)];
+		gl.glGetProgramInfoLog(program, log.length, null, 0, log, 0);
+		return new String(log).trim();
+	}
+}
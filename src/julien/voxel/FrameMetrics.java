@@ -0,0 +1,369 @@
+package julien.voxel;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Per frame timings and counters for Render.draw. Each stage's time goes into a histogram, so the median, 99th
+ * percentile and worst frame since the last reset can be read at any time, and the chunk and memory counters of
+ * the last frame are kept next to them. All of it is visible over JMX (jconsole, VisualVM) as julien.voxel:type=FrameMetrics,
+ * and each frame can be streamed as a row of a CSV file.
+ * Recording costs a few array increments per stage, there is no allocation per frame. Stages are recorded on the
+ * GL thread and read from the JMX threads, so every method is synchronized.
+ */
+public class FrameMetrics implements DynamicMBean {
+	/** Time from the start of one frame to the start of the next */
+	public static final int FRAME = 0;
+	/** ChunkManager.render */
+	public static final int RENDER = 1;
+	/** ChunkManager.loadNext */
+	public static final int LOAD_NEXT = 2;
+	/** ChunkManager.unloadNext */
+	public static final int UNLOAD_NEXT = 3;
+	/** ChunkManager.updateLoad, every 10th frame */
+	public static final int UPDATE_LOAD = 4;
+	/** ChunkManager.updateUnload, every 10th frame */
+	public static final int UPDATE_UNLOAD = 5;
+	/** Stage names, as used in attribute names and the CSV header */
+	private static final String[] STAGES = {"frame", "render", "loadNext", "unloadNext", "updateLoad", "updateUnload"};
+	/** Counter names, in the order of the counters array */
+	private static final String[] COUNTERS = {"chunksLoaded", "chunksQueued", "chunksDrawn", "vertices", "vboBytes", "meshBufferBytes", "directBytes"};
+	/** Rows are flushed to the CSV file every this many frames */
+	private static final int CSV_FLUSH = 64;
+	/** Where the MBean is registered */
+	private static final String NAME = "julien.voxel:type=FrameMetrics";
+	/** Time of each stage since the last reset */
+	private final Histogram[] histograms = new Histogram[STAGES.length];
+	/** Microseconds of each stage this frame, -1 if it didn't run */
+	private final long[] current = new long[STAGES.length];
+	/** Counters at the end of the last frame */
+	private final long[] counters = new long[COUNTERS.length];
+	/** The JVM's direct buffer pool, null if the JVM doesn't say */
+	private final BufferPoolMXBean direct = directPool();
+	/** Frames ended since the last reset */
+	private long frames = 0;
+	/** Start of the last frame, 0 before the first */
+	private long frameStart = 0;
+	/** CSV file being streamed to, null if none */
+	private BufferedWriter csv;
+	/** Path of the CSV file */
+	private String csvPath;
+
+	/** Counts of values in buckets of roughly equal relative width, microseconds. Values under 16 get a bucket
+	 * each, above that every power of two is split into 8 buckets, so percentiles are within 12.5% */
+	private static class Histogram {
+		/** Values of up to 2^40 microseconds (12 days) get a bucket of their own, anything above shares the last */
+		static final int MAX_EXPONENT = 40;
+		final long[] counts = new long[16 + (MAX_EXPONENT-4)*8];
+		long count = 0;
+		long max = 0;
+
+		void record(long micros){
+			counts[bucket(micros)]++;
+			count++;
+			max = Math.max(max, micros);
+		}
+
+		/** Smallest value at least the given fraction of recorded values are at or below, 0 if there are none */
+		long percentile(double fraction){
+			long target = (long) Math.ceil(fraction*count);
+			long seen = 0;
+			for(int i = 0; i < counts.length; i++){
+				seen += counts[i];
+				if(seen >= target && seen > 0){
+					return Math.min(upper(i), max);
+				}
+			}
+			return 0;
+		}
+
+		void clear(){
+			Arrays.fill(counts, 0);
+			count = 0;
+			max = 0;
+		}
+
+		static int bucket(long v){
+			if(v < 16){
+				return (int) Math.max(v, 0);
+			}
+			int e = 63 - Long.numberOfLeadingZeros(v);
+			if(e >= MAX_EXPONENT){
+				return 16 + (MAX_EXPONENT-4)*8 - 1;
+			}
+			return 16 + (e-4)*8 + (int) ((v >>> (e-3)) & 7);
+		}
+
+		/** Largest value in a bucket */
+		static long upper(int i){
+			if(i < 16){
+				return i;
+			}
+			int e = (i-16)/8 + 4;
+			return ((8L + (i-16)%8 + 1) << (e-3)) - 1;
+		}
+	}
+
+	/** Creates empty metrics. Call register to make them visible over JMX */
+	public FrameMetrics(){
+		for(int i = 0; i < histograms.length; i++){
+			histograms[i] = new Histogram();
+		}
+		Arrays.fill(current, -1);
+	}
+
+	/** Registers with the platform MBean server. Failing to is printed, not thrown, the metrics still work */
+	public void register(){
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(NAME));
+		} catch (JMException e) {
+			System.err.println("Frame metrics could not be registered with JMX: " + e);
+		}
+	}
+
+	/** Marks the start of a frame and records the time since the last one. Returns the time, for time */
+	public synchronized long startFrame(){
+		long now = System.nanoTime();
+		if(frameStart != 0){
+			record(FRAME, now - frameStart);
+		}
+		frameStart = now;
+		return now;
+	}
+
+	/** Records the time from start to now for a stage. Returns now, to be the start of the next stage */
+	public synchronized long time(int stage, long start){
+		long now = System.nanoTime();
+		record(stage, now - start);
+		return now;
+	}
+
+	/** Records a stage that took the given nanoseconds */
+	private void record(int stage, long nanos){
+		long micros = nanos/1000;
+		histograms[stage].record(micros);
+		current[stage] = micros;
+	}
+
+	/** Ends a frame with the counters it finished with, and writes its row if a CSV file is being streamed */
+	public synchronized void endFrame(int loaded, int queued, int drawn, long vertices, long vboBytes, long meshBufferBytes){
+		counters[0] = loaded;
+		counters[1] = queued;
+		counters[2] = drawn;
+		counters[3] = vertices;
+		counters[4] = vboBytes;
+		counters[5] = meshBufferBytes;
+		counters[6] = direct != null ? direct.getMemoryUsed() : -1;
+		frames++;
+		if(csv != null){
+			writeRow();
+		}
+		Arrays.fill(current, -1);
+	}
+
+	/** Starts writing a row per frame to a CSV file, replacing it. Stops writing to any previous file first */
+	public synchronized void startCsv(String path){
+		stopCsv();
+		try {
+			csv = new BufferedWriter(new FileWriter(path));
+			csvPath = path;
+			StringBuilder header = new StringBuilder("frame,timeMs");
+			for(String s : STAGES){
+				header.append(',').append(s).append("Us");
+			}
+			for(String s : COUNTERS){
+				header.append(',').append(s);
+			}
+			csv.write(header.toString());
+			csv.newLine();
+			System.out.println("Streaming frame metrics to " + path);
+		} catch (IOException e) {
+			System.err.println("Frame metrics CSV " + path + " could not be opened: " + e);
+			csv = null;
+		}
+	}
+
+	/** Flushes and closes the CSV file, if one is being streamed */
+	public synchronized void stopCsv(){
+		if(csv == null){
+			return;
+		}
+		try {
+			csv.close();
+		} catch (IOException e) {
+			System.err.println("Frame metrics CSV " + csvPath + " could not be closed: " + e);
+		}
+		csv = null;
+	}
+
+	/** Appends this frame's row. A stage that didn't run this frame is left empty */
+	private void writeRow(){
+		StringBuilder row = new StringBuilder(128);
+		row.append(frames).append(',').append(System.currentTimeMillis());
+		for(long micros : current){
+			row.append(',');
+			if(micros >= 0){
+				row.append(micros);
+			}
+		}
+		for(long c : counters){
+			row.append(',').append(c);
+		}
+		try {
+			csv.write(row.toString());
+			csv.newLine();
+			if(frames%CSV_FLUSH == 0){
+				csv.flush();
+			}
+		} catch (IOException e) {
+			System.err.println("Frame metrics CSV " + csvPath + " stopped: " + e);
+			stopCsv();
+		}
+	}
+
+	/** Empties the histograms, so percentiles only cover frames from now on */
+	public synchronized void reset(){
+		for(Histogram h : histograms){
+			h.clear();
+		}
+		frames = 0;
+	}
+
+	/** Median, 99th percentile and worst time of each stage, in milliseconds, for the console */
+	public synchronized String report(){
+		StringBuilder sb = new StringBuilder("Frame metrics over " + frames + " frames (p50/p99/max ms):");
+		for(int i = 0; i < STAGES.length; i++){
+			Histogram h = histograms[i];
+			sb.append(i == 0 ? " " : ", ").append(STAGES[i]).append(' ').append(ms(h.percentile(0.5))).append('/')
+					.append(ms(h.percentile(0.99))).append('/').append(ms(h.max));
+		}
+		return sb.toString();
+	}
+
+	private static String ms(long micros){
+		return String.format("%.2f", micros/1000.0);
+	}
+
+	@Override
+	public synchronized Object getAttribute(String name) throws AttributeNotFoundException {
+		if(name.equals("frames")){
+			return frames;
+		}
+		if(name.equals("csvFile")){
+			return csv != null ? csvPath : "";
+		}
+		for(int i = 0; i < COUNTERS.length; i++){
+			if(name.equals(COUNTERS[i])){
+				return counters[i];
+			}
+		}
+		for(int i = 0; i < STAGES.length; i++){
+			if(name.startsWith(STAGES[i])){
+				String stat = name.substring(STAGES[i].length());
+				Histogram h = histograms[i];
+				if(stat.equals("P50")){
+					return h.percentile(0.5);
+				} else if(stat.equals("P99")){
+					return h.percentile(0.99);
+				} else if(stat.equals("Max")){
+					return h.max;
+				} else if(stat.equals("Count")){
+					return h.count;
+				}
+			}
+		}
+		throw new AttributeNotFoundException(name);
+	}
+
+	@Override
+	public synchronized AttributeList getAttributes(String[] names){
+		AttributeList list = new AttributeList();
+		for(String name : names){
+			try {
+				list.add(new Attribute(name, getAttribute(name)));
+			} catch (AttributeNotFoundException e) {
+				// left out, as the interface asks
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes){
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+		if(action.equals("reset")){
+			reset();
+			return null;
+		} else if(action.equals("startCsv") && params != null && params.length == 1 && params[0] instanceof String){
+			startCsv((String) params[0]);
+			return null;
+		} else if(action.equals("stopCsv")){
+			stopCsv();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(action));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo(){
+		ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for(String stage : STAGES){
+			attributes.add(longAttribute(stage + "P50", "Median " + stage + " time since the last reset, microseconds"));
+			attributes.add(longAttribute(stage + "P99", "99th percentile " + stage + " time since the last reset, microseconds"));
+			attributes.add(longAttribute(stage + "Max", "Longest " + stage + " time since the last reset, microseconds"));
+			attributes.add(longAttribute(stage + "Count", "Times " + stage + " was recorded since the last reset"));
+		}
+		for(String counter : COUNTERS){
+			attributes.add(longAttribute(counter, "Last frame's " + counter));
+		}
+		attributes.add(longAttribute("frames", "Frames since the last reset"));
+		attributes.add(new MBeanAttributeInfo("csvFile", String.class.getName(), "CSV file being streamed to, empty if none", true, false, false));
+		MBeanOperationInfo[] operations = {
+			new MBeanOperationInfo("reset", "Empties the histograms", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION),
+			new MBeanOperationInfo("startCsv", "Streams a row per frame to a CSV file",
+					new MBeanParameterInfo[] {new MBeanParameterInfo("path", String.class.getName(), "File to write")}, "void", MBeanOperationInfo.ACTION),
+			new MBeanOperationInfo("stopCsv", "Closes the CSV file", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)};
+		return new MBeanInfo(getClass().getName(), "Render.draw timings and chunk counters",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, operations, null);
+	}
+
+	private static MBeanAttributeInfo longAttribute(String name, String description){
+		return new MBeanAttributeInfo(name, "long", description, true, false, false);
+	}
+
+	/** The JVM's pool of direct buffers, or null */
+	private static BufferPoolMXBean directPool(){
+		for(BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)){
+			if(pool.getName().equals("direct")){
+				return pool;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,88 @@
+package julien.voxel;
+
+/**
+ * The camera's view frustum as six planes, for skipping chunks that can't be seen.
+ * Built from the same values Render hands to gluPerspective and gluLookAt, so it needs no GL calls.
+ */
+public class Frustum {
+	/** Plane normals pointing into the frustum (x, y, z) and offsets (w): left, right, bottom, top, near, far */
+	private float[][] planes = new float[6][4];
+	/** Camera position */
+	private float[] eye = new float[3];
+	/** Unit view direction */
+	private float[] forward = new float[3];
+
+	/** Rebuilds the planes for a camera at location looking along yaw and pitch (radians, as in Render.rChange).
+	 * fovy is the vertical field of view in degrees, aspect is width / height */
+	public void update(float[] location, float yaw, float pitch, double fovy, float aspect, double near, double far){
+		eye[0] = location[0];
+		eye[1] = location[1];
+		eye[2] = location[2];
+		forward[0] = (float) (Math.cos(yaw)*Math.cos(pitch));
+		forward[1] = (float) Math.sin(pitch);
+		forward[2] = (float) (Math.sin(yaw)*Math.cos(pitch));
+		// right = forward x world up, up = right x forward (the same basis gluLookAt builds)
+		float[] right = normalize(new float[] {-forward[2], 0, forward[0]});
+		float[] up = {
+			right[1]*forward[2] - right[2]*forward[1],
+			right[2]*forward[0] - right[0]*forward[2],
+			right[0]*forward[1] - right[1]*forward[0]};
+		float halfV = (float) Math.tan(Math.toRadians(fovy)/2);
+		float halfH = halfV*aspect;
+		// A side plane contains the eye and one edge of the view, its normal leans from the edge toward the center
+		setPlane(0, right[0] + halfH*forward[0], right[1] + halfH*forward[1], right[2] + halfH*forward[2], 0);
+		setPlane(1, -right[0] + halfH*forward[0], -right[1] + halfH*forward[1], -right[2] + halfH*forward[2], 0);
+		setPlane(2, up[0] + halfV*forward[0], up[1] + halfV*forward[1], up[2] + halfV*forward[2], 0);
+		setPlane(3, -up[0] + halfV*forward[0], -up[1] + halfV*forward[1], -up[2] + halfV*forward[2], 0);
+		setPlane(4, forward[0], forward[1], forward[2], (float) near);
+		setPlane(5, -forward[0], -forward[1], -forward[2], (float) far);
+	}
+
+	/** Could any part of the box (x0,y0,z0)-(x1,y1,z1) be visible */
+	public boolean intersects(float x0, float y0, float z0, float x1, float y1, float z1){
+		for(int i = 0; i < 6; i++){
+			float[] p = planes[i];
+			// test the corner furthest along the normal, if it's outside the whole box is
+			float d = p[0]*(p[0] > 0 ? x1 : x0) + p[1]*(p[1] > 0 ? y1 : y0) + p[2]*(p[2] > 0 ? z1 : z0) + p[3];
+			if(d < 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Camera position as x, y, z. Shared, don't modify it */
+	public float[] getEye(){
+		return eye;
+	}
+	
+	/** Squared distance from the camera to a point, for sorting */
+	public float distanceSq(float x, float y, float z){
+		float dx = x - eye[0];
+		float dy = y - eye[1];
+		float dz = z - eye[2];
+		return dx*dx + dy*dy + dz*dz;
+	}
+
+	/** Sets a plane with the given inward normal, through the point that is ahead of the eye by the given distance */
+	private void setPlane(int i, float nx, float ny, float nz, float ahead){
+		float[] n = normalize(new float[] {nx, ny, nz});
+		float px = eye[0] + ahead*forward[0];
+		float py = eye[1] + ahead*forward[1];
+		float pz = eye[2] + ahead*forward[2];
+		planes[i][0] = n[0];
+		planes[i][1] = n[1];
+		planes[i][2] = n[2];
+		planes[i][3] = -(n[0]*px + n[1]*py + n[2]*pz);
+	}
+
+	private static float[] normalize(float[] v){
+		float l = (float) Math.sqrt(v[0]*v[0] + v[1]*v[1] + v[2]*v[2]);
+		if(l > 0){
+			v[0] /= l;
+			v[1] /= l;
+			v[2] /= l;
+		}
+		return v;
+	}
+}
@@ -24,13 +24,23 @@ public class GUI{
 	public static int updates = 2;
 	public static boolean lighting = false;
 	public static boolean wireframe = false;
+	public static boolean greedy = true;
+	public static boolean fourD = false;
+	public static boolean persist = true;
+	public static boolean warmStart = true;
+	public static int editBudget = 4;
+	public static boolean lod = true;
+	public static boolean caveCulling = true;
+	/** CSV file to stream frame metrics to, from -Dvoxel.metrics=file.csv, or null */
+	public static String metricsFile = System.getProperty("voxel.metrics");
+	public static int workers = Math.max(1, Runtime.getRuntime().availableProcessors()-1);
 	
 	/** The entry main() method to setup the top-level container and animator */
 	public static void main(String[] args) {
 		try{
-			String inS = JOptionPane.showInputDialog("Input draw distance (3-6 Recomended)");
+			String inS = JOptionPane.showInputDialog("Input draw distance (3-6 Recomended, up to 32 with far chunks drawn in less detail)");
 			drawDistance = Integer.parseInt(inS);
-			if(drawDistance < 1 || chunkSize > 10){
+			if(drawDistance < 1 || drawDistance > 48){
 				drawDistance = 3;
 			}
 		} catch (Exception e) {
@@ -60,8 +70,21 @@ public class GUI{
 		} catch (Exception e) {
 			updates = 2;
 	    }
+		try{
+			String inS = JOptionPane.showInputDialog("Chunk building threads, default is " + workers + " (one less than your cores)");
+			int in = Integer.parseInt(inS);
+			if(in >= 1 && in <= 64){
+				workers = in;
+			}
+		} catch (Exception e) {	}
 		lighting = (JOptionPane.showConfirmDialog(null, "Enable Lighting?")==0);
 		wireframe = (JOptionPane.showConfirmDialog(null, "Enable Wireframe?")==0);
+		greedy = (JOptionPane.showConfirmDialog(null, "Enable greedy meshing? (merges faces, far fewer vertices)")==0);
+		fourD = (JOptionPane.showConfirmDialog(null, "Generate 4D terrain? (Z and X move the view along w)")==0);
+		if(!fourD){
+			persist = (JOptionPane.showConfirmDialog(null, "Save generated chunks in the world folder? (revisited chunks load faster, block edits are kept)")==0);
+		}
+		warmStart = (JOptionPane.showConfirmDialog(null, "Keep a snapshot of the starting area? (the next start skips building it)")==0);
 		// Run the GUI codes in the event-dispatching thread for thread safety
 		SwingUtilities.invokeLater(new Runnable() {
 			@Override
@@ -101,6 +124,9 @@ public class GUI{
 					@Override
 					public void run() {
 						if (animator.isStarted()) animator.stop();
+						GUI.canvas.destroy(); // frees the chunk buffers while the GL context is still there
+						if (GUI.canvas.chMan != null) GUI.canvas.chMan.close(); // finish saving chunks
+						GUI.canvas.metrics.stopCsv(); // flush the last rows
                         	System.exit(0);
 					}
 				}.start();
@@ -0,0 +1,144 @@
+package julien.voxel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches ChunkManager.map2D for whole chunk columns. Every chunk stacked in a column, and every neighbor
+ * predicting that column's border, shares one tile, so each (x, z) is only evaluated once.
+ * Holds a bounded number of tiles and evicts the least recently used. Safe for any number of threads:
+ * lookups don't lock, and a tile is computed once even if several workers ask for it at the same time.
+ */
+public class HeightmapCache {
+	/** One chunk column of terrain heights */
+	private static class Tile {
+		/** Heights, indexed x*chunkSize + z. Null until computed */
+		double[] heights;
+		/** Lowest and highest of the heights */
+		double lowest, highest;
+		/** Clock value of the last lookup, for LRU eviction */
+		volatile long lastUse;
+	}
+
+	/** Tiles by packed column position */
+	private final ConcurrentHashMap<Long, Tile> tiles = new ConcurrentHashMap<Long, Tile>();
+	/** Most tiles kept */
+	private final int capacity;
+	/** Incremented on every lookup, orders tiles by use */
+	private final AtomicLong clock = new AtomicLong();
+	/** Held by the thread evicting, the others don't wait for it */
+	private final Object evicting = new Object();
+	/** Tiles computed */
+	private final AtomicLong misses = new AtomicLong();
+	/** Lookups answered from the cache */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Creates a cache holding at most capacity chunk columns */
+	public HeightmapCache(int capacity){
+		this.capacity = capacity;
+	}
+
+	/** Terrain heights for the chunk column at (chunkX, chunkZ), indexed x*chunkSize + z in blocks.
+	 * The array is shared, don't modify it */
+	public double[] tile(int chunkX, int chunkZ){
+		return load(chunkX, chunkZ).heights;
+	}
+
+	/** Lowest terrain height in the chunk column at (chunkX, chunkZ) */
+	public double lowest(int chunkX, int chunkZ){
+		return load(chunkX, chunkZ).lowest;
+	}
+
+	/** Highest terrain height in the chunk column at (chunkX, chunkZ) */
+	public double highest(int chunkX, int chunkZ){
+		return load(chunkX, chunkZ).highest;
+	}
+
+	/** Looks up a tile, computing it first if it isn't cached */
+	private Tile load(int chunkX, int chunkZ){
+		Long key = ChunkMap.key(chunkX, 0, chunkZ);
+		Tile t = tiles.get(key);
+		if(t == null){
+			Tile created = new Tile();
+			created.lastUse = clock.incrementAndGet(); // so it isn't the first to be evicted
+			t = tiles.putIfAbsent(key, created);
+			if(t == null){
+				t = created;
+				if(tiles.size() > capacity){
+					evict();
+				}
+			}
+		}
+		t.lastUse = clock.incrementAndGet();
+		synchronized(t){ // whoever gets here first computes it, the rest wait for the result
+			if(t.heights == null){
+				double[] heights = compute(chunkX, chunkZ);
+				t.lowest = Double.POSITIVE_INFINITY;
+				t.highest = Double.NEGATIVE_INFINITY;
+				for(double h : heights){
+					t.lowest = Math.min(t.lowest, h);
+					t.highest = Math.max(t.highest, h);
+				}
+				t.heights = heights;
+				misses.incrementAndGet();
+			} else {
+				hits.incrementAndGet();
+			}
+			return t;
+		}
+	}
+
+	/** Terrain height at a world block column */
+	public double height(int x, int z){
+		int size = ChunkManager.chunkSize;
+		int chunkX = Math.floorDiv(x, size);
+		int chunkZ = Math.floorDiv(z, size);
+		return tile(chunkX, chunkZ)[(x - chunkX*size)*size + (z - chunkZ*size)];
+	}
+
+	/** One line summary for the console */
+	public String report(){
+		return "Heightmap cache: " + tiles.size() + "/" + capacity + " tiles, " + hits.get() + " hits, " + misses.get() + " computed";
+	}
+
+	/** Evaluates the terrain function for a whole column, ChunkManager.map2D done with the grid noise calls */
+	private static double[] compute(int chunkX, int chunkZ){
+		int size = ChunkManager.chunkSize;
+		double x0 = chunkX*size, z0 = chunkZ*size;
+		double[] heights = new double[size*size];
+		double[] detail = new double[size*size];
+		// map2D's second layer has z as its first noise coordinate, so it comes out indexed x*size + z already
+		SimplexNoise.noise(heights, 0, (z0+100)/120, (x0-100)/100, 1.0/120, 1.0/100, size, size);
+		// the first layer comes out indexed z*size + x
+		SimplexNoise.noise(detail, 0, x0/30, z0/30, 1.0/30, 1.0/30, size, size);
+		for(int x = 0; x < size; x++){
+			for(int z = 0; z < size; z++){
+				heights[x*size + z] = 10*detail[z*size + x] + (25*heights[x*size + z] + 36);
+			}
+		}
+		return heights;
+	}
+
+	/** Drops the least recently used eighth of the tiles. Only one thread evicts at a time */
+	private void evict(){
+		synchronized(evicting){
+			if(tiles.size() <= capacity){
+				return; // someone else just did it
+			}
+			ArrayList<Long> uses = new ArrayList<Long>(tiles.size());
+			for(Tile t : tiles.values()){
+				uses.add(t.lastUse);
+			}
+			Collections.sort(uses);
+			long cutoff = uses.get(Math.min(uses.size() - capacity + capacity/8, uses.size()-1));
+			for(Map.Entry<Long, Tile> e : tiles.entrySet()){
+				if(e.getValue().lastUse < cutoff){
+					tiles.remove(e.getKey(), e.getValue());
+				}
+			}
+		}
+	}
+}
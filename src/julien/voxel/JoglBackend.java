@@ -0,0 +1,63 @@
+package julien.voxel;
+
+import java.nio.ByteBuffer;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+/**
+ * RenderBackend drawing with JOGL: Vertex Buffers are GL buffer objects, and draws go through ChunkShader
+ * with one glMultiDrawArrays per buffer. Must only be used on the thread that owns the GL context.
+ */
+public class JoglBackend implements RenderBackend {
+	/** GL context everything is made in */
+	private final GL2 gl;
+	/** Decodes the packed chunk vertices */
+	private final ChunkShader shader;
+
+	/** Creates a backend drawing into the given context, compiling the chunk shader in it */
+	public JoglBackend(GL2 gl){
+		this.gl = gl;
+		this.shader = new ChunkShader(gl);
+	}
+
+	@Override
+	public int createBuffer(int bytes){
+		int[] id = new int[1];
+		gl.glGenBuffers(1, id, 0);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, id[0]);
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, bytes, null, GL.GL_DYNAMIC_DRAW); // allocate, fill later
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+		return id[0];
+	}
+
+	@Override
+	public void upload(int buffer, int offset, ByteBuffer data){
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer);
+		gl.glBufferSubData(GL.GL_ARRAY_BUFFER, offset, data.remaining(), data);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+	}
+
+	@Override
+	public void deleteBuffers(int[] buffers, int n){
+		gl.glDeleteBuffers(n, buffers, 0);
+	}
+
+	@Override
+	public void begin(){
+		shader.use(gl);
+	}
+
+	@Override
+	public void draw(int buffer, float originX, float originY, float originZ, int[] firsts, int[] counts, int n){
+		shader.setOrigin(gl, originX, originY, originZ);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer);
+		gl.glVertexAttribPointer(ChunkShader.ATTRIB_VERTEX, 4, GL.GL_UNSIGNED_BYTE, false, Chunk.VERTEX_SIZE, 0);
+		gl.glMultiDrawArrays(GL.GL_TRIANGLES, firsts, 0, counts, 0, n);
+	}
+
+	@Override
+	public void end(){
+		shader.release(gl);
+	}
+}
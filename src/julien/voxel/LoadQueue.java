@@ -0,0 +1,144 @@
+package julien.voxel;
+
+import java.util.List;
+
+/**
+ * Queue of chunks waiting to be built, nearest to the camera first. A binary heap on a float priority:
+ * the squared distance from the camera in chunks, scaled up for chunks behind the camera.
+ * When the camera moves, reprioritize recomputes every priority and drops the chunks that left the draw
+ * distance before any work is spent on them. Not thread safe, ChunkManager only uses it on the GL thread.
+ */
+public class LoadQueue {
+	/** Heap of chunks, the root is the next to load */
+	private Chunk[] heap = new Chunk[64];
+	/** Priority of each heap entry, lower loads sooner */
+	private float[] priority = new float[64];
+	/** Number of queued chunks */
+	private int size = 0;
+	/** Camera position in chunks */
+	private float camX, camY, camZ;
+	/** Horizontal view direction */
+	private float dirX = 1, dirZ = 0;
+
+	/** Sets the camera used for priorities. Position in chunks, yaw in radians as in Render.rChange.
+	 * Only affects chunks added afterwards until reprioritize is called */
+	public void setCamera(float x, float y, float z, float yaw){
+		camX = x;
+		camY = y;
+		camZ = z;
+		dirX = (float) Math.cos(yaw);
+		dirZ = (float) Math.sin(yaw);
+	}
+
+	/** Adds a chunk */
+	public void add(Chunk c){
+		if(size == heap.length){
+			Chunk[] grownHeap = new Chunk[size*2];
+			float[] grownPriority = new float[size*2];
+			System.arraycopy(heap, 0, grownHeap, 0, size);
+			System.arraycopy(priority, 0, grownPriority, 0, size);
+			heap = grownHeap;
+			priority = grownPriority;
+		}
+		heap[size] = c;
+		priority[size] = priorityOf(c);
+		siftUp(size++);
+	}
+
+	/** Removes and returns the chunk that should load next, or null if empty */
+	public Chunk poll(){
+		if(size == 0){
+			return null;
+		}
+		Chunk next = heap[0];
+		size--;
+		heap[0] = heap[size];
+		priority[0] = priority[size];
+		heap[size] = null;
+		if(size > 0){
+			siftDown(0);
+		}
+		return next;
+	}
+
+	/** Recomputes all priorities for the current camera. Chunks further than range chunks from (centerX, centerZ)
+	 * on either horizontal axis are removed and added to dropped */
+	public void reprioritize(int centerX, int centerZ, int range, List<Chunk> dropped){
+		int kept = 0;
+		for(int i = 0; i < size; i++){
+			Chunk c = heap[i];
+			if(Math.abs(c.pos[0]-centerX) > range || Math.abs(c.pos[2]-centerZ) > range){
+				dropped.add(c);
+			} else {
+				heap[kept] = c;
+				priority[kept] = priorityOf(c);
+				kept++;
+			}
+		}
+		for(int i = kept; i < size; i++){
+			heap[i] = null;
+		}
+		size = kept;
+		for(int i = size/2 - 1; i >= 0; i--){
+			siftDown(i); // rebuild the heap bottom up, O(n)
+		}
+	}
+
+	/** Is the queue empty */
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	/** Number of queued chunks */
+	public int size(){
+		return size;
+	}
+
+	/** Squared distance from the camera to the chunk's center, in chunks. Up to twice that behind the camera */
+	private float priorityOf(Chunk c){
+		float dx = c.pos[0] + 0.5f - camX;
+		float dy = c.pos[1] + 0.5f - camY;
+		float dz = c.pos[2] + 0.5f - camZ;
+		float flat = dx*dx + dz*dz;
+		float facing = flat > 0 ? (dx*dirX + dz*dirZ)/(float) Math.sqrt(flat) : 1;
+		return (flat + dy*dy)*(1.5f - 0.5f*facing);
+	}
+
+	private void siftUp(int i){
+		Chunk c = heap[i];
+		float p = priority[i];
+		while(i > 0){
+			int parent = (i-1)/2;
+			if(priority[parent] <= p){
+				break;
+			}
+			heap[i] = heap[parent];
+			priority[i] = priority[parent];
+			i = parent;
+		}
+		heap[i] = c;
+		priority[i] = p;
+	}
+
+	private void siftDown(int i){
+		Chunk c = heap[i];
+		float p = priority[i];
+		while(true){
+			int child = 2*i + 1;
+			if(child >= size){
+				break;
+			}
+			if(child+1 < size && priority[child+1] < priority[child]){
+				child++;
+			}
+			if(priority[child] >= p){
+				break;
+			}
+			heap[i] = heap[child];
+			priority[i] = priority[child];
+			i = child;
+		}
+		heap[i] = c;
+		priority[i] = p;
+	}
+}
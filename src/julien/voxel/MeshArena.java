@@ -0,0 +1,235 @@
+package julien.voxel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Suballocates chunk meshes from a few large Vertex Buffers ("pages"), so the chunks in view are drawn with one
+ * glMultiDrawArrays per page instead of a bind, pointer and draw each.
+ * Pages belong to a region of REGION x REGION chunk columns. Chunks store their vertices relative to their
+ * region's corner (see Chunk.VERTEX_SIZE), so the shader only needs the region's origin, set once per page.
+ * Space in a page is handed out first fit in multiples of ALIGN bytes, and freed ranges merge with the free
+ * ranges next to them. A page that empties goes back to the VboRecycler. Must only be used on the GL thread.
+ */
+public class MeshArena {
+	/** log2 of REGION */
+	public static final int REGION_SHIFT = regionShift();
+	/** Chunk columns across a region. As many as keep region relative coordinates within a byte */
+	public static final int REGION = 1 << REGION_SHIFT;
+	/** Bytes in a page, unless a mesh needs more */
+	private static final int PAGE_SIZE = 1 << 20;
+	/** Allocations are rounded up to this many bytes, so a remesh that grows a little still fits */
+	private static final int ALIGN = 256;
+	/** Where the pages' buffers come from */
+	private final VboRecycler vbos;
+	/** Uploads and draws the pages */
+	private final RenderBackend backend;
+	/** Pages of each region, by packed region position */
+	private final HashMap<Long, ArrayList<Page>> regions = new HashMap<Long, ArrayList<Page>>();
+	/** Pages with draws queued this frame, in the order they got their first one */
+	private final ArrayList<Page> batch = new ArrayList<Page>();
+	/** Allocations handed out and not freed */
+	private int slots = 0;
+	/** Pages in use */
+	private int pages = 0;
+	/** Bytes of the pages in use, and of those, bytes handed out */
+	private long capacity = 0, used = 0;
+	/** glMultiDrawArrays calls in the last flush */
+	private int drawCalls = 0;
+
+	/** A chunk's share of a page */
+	public static class Slot {
+		final Page page;
+		/** First byte in the page */
+		final int offset;
+		/** Bytes reserved */
+		final int capacity;
+
+		Slot(Page page, int offset, int capacity){
+			this.page = page;
+			this.offset = offset;
+			this.capacity = capacity;
+		}
+
+		/** Bytes reserved, the most a mesh uploaded to it can take */
+		public int getCapacity(){
+			return capacity;
+		}
+	}
+
+	/** One Vertex Buffer shared by chunks of a region */
+	private static class Page {
+		final int buffer;
+		final int capacity;
+		/** Region position */
+		final int regionX, regionZ;
+		/** Region corner in world coordinates */
+		final float originX, originZ;
+		/** Free ranges, offset to length */
+		final TreeMap<Integer, Integer> free = new TreeMap<Integer, Integer>();
+		/** Bytes handed out */
+		int used = 0;
+		/** Draws queued this frame: first vertex and vertex count of each */
+		int[] firsts = new int[64], counts = new int[64];
+		int queued = 0;
+
+		Page(int buffer, int capacity, int regionX, int regionZ){
+			this.buffer = buffer;
+			this.capacity = capacity;
+			this.regionX = regionX;
+			this.regionZ = regionZ;
+			this.originX = regionX*REGION*ChunkManager.chunkSize*ChunkManager.len;
+			this.originZ = regionZ*REGION*ChunkManager.chunkSize*ChunkManager.len;
+			free.put(0, capacity);
+		}
+	}
+
+	/** Creates an arena taking its pages from the given recycler, and drawing them with the given backend */
+	public MeshArena(VboRecycler vbos, RenderBackend backend){
+		this.vbos = vbos;
+		this.backend = backend;
+	}
+
+	/** Region coordinate of a chunk coordinate, rounding down for negative chunks */
+	public static int region(int chunk){
+		return chunk >> REGION_SHIFT;
+	}
+
+	/** Reserves at least the given number of bytes in a page of the region holding chunk column (chunkX, chunkZ) */
+	public Slot allocate(int chunkX, int chunkZ, int bytes){
+		bytes = (bytes + ALIGN-1)/ALIGN*ALIGN;
+		int regionX = region(chunkX), regionZ = region(chunkZ);
+		Long key = ChunkMap.key(regionX, 0, regionZ);
+		ArrayList<Page> list = regions.get(key);
+		if(list == null){
+			list = new ArrayList<Page>(2);
+			regions.put(key, list);
+		}
+		for(Page p : list){
+			Slot s = take(p, bytes);
+			if(s != null){
+				return s;
+			}
+		}
+		int size = VboRecycler.capacity(Math.max(bytes, PAGE_SIZE));
+		Page p = new Page(vbos.acquire(size), size, regionX, regionZ);
+		list.add(p);
+		pages++;
+		capacity += size;
+		return take(p, bytes);
+	}
+
+	/** Takes bytes from the first free range of a page they fit in, or returns null if none is big enough */
+	private Slot take(Page p, int bytes){
+		for(Map.Entry<Integer, Integer> e : p.free.entrySet()){
+			int length = e.getValue();
+			if(length >= bytes){
+				int offset = e.getKey();
+				p.free.remove(offset);
+				if(length > bytes){
+					p.free.put(offset + bytes, length - bytes);
+				}
+				p.used += bytes;
+				used += bytes;
+				slots++;
+				return new Slot(p, offset, bytes);
+			}
+		}
+		return null;
+	}
+
+	/** Copies a mesh into a slot. It must fit */
+	public void upload(Slot s, ByteBuffer data){
+		backend.upload(s.page.buffer, s.offset, data);
+	}
+
+	/** Gives a slot back. Its range merges with free ranges on either side, and an empty page goes back to the recycler.
+	 * Don't call between draw and flush */
+	public void free(Slot s){
+		Page p = s.page;
+		int offset = s.offset, length = s.capacity;
+		Map.Entry<Integer, Integer> before = p.free.floorEntry(offset);
+		if(before != null && before.getKey() + before.getValue() == offset){
+			p.free.remove(before.getKey());
+			offset = before.getKey();
+			length += before.getValue();
+		}
+		Integer after = p.free.get(offset + length);
+		if(after != null){
+			p.free.remove(offset + length);
+			length += after;
+		}
+		p.free.put(offset, length);
+		p.used -= s.capacity;
+		used -= s.capacity;
+		slots--;
+		if(p.used == 0){
+			Long key = ChunkMap.key(p.regionX, 0, p.regionZ);
+			ArrayList<Page> list = regions.get(key);
+			list.remove(p);
+			if(list.isEmpty()){
+				regions.remove(key);
+			}
+			vbos.release(p.buffer, p.capacity);
+			pages--;
+			capacity -= p.capacity;
+		}
+	}
+
+	/** Queues the first vertices of a slot to be drawn by the next flush */
+	public void draw(Slot s, int vertices){
+		Page p = s.page;
+		if(p.queued == 0){
+			batch.add(p);
+		} else if(p.queued == p.firsts.length){
+			int[] firsts = new int[p.queued*2], counts = new int[p.queued*2];
+			System.arraycopy(p.firsts, 0, firsts, 0, p.queued);
+			System.arraycopy(p.counts, 0, counts, 0, p.queued);
+			p.firsts = firsts;
+			p.counts = counts;
+		}
+		p.firsts[p.queued] = s.offset/Chunk.VERTEX_SIZE;
+		p.counts[p.queued] = vertices;
+		p.queued++;
+	}
+
+	/** Draws everything queued since the last flush, one backend draw (glMultiDrawArrays) per page, pages in the
+	 * order they were first queued. Call between the backend's begin and end */
+	public void flush(){
+		drawCalls = 0;
+		for(Page p : batch){
+			backend.draw(p.buffer, p.originX, 0, p.originZ, p.firsts, p.counts, p.queued);
+			p.queued = 0;
+			drawCalls++;
+		}
+		batch.clear();
+	}
+
+	/** glMultiDrawArrays calls in the last flush */
+	public int getDrawCalls(){
+		return drawCalls;
+	}
+
+	/** Allocations handed out and not freed */
+	public int getSlots(){
+		return slots;
+	}
+
+	/** One line summary for the console */
+	public String report(){
+		return "Mesh arena: " + slots + " meshes in " + pages + " pages, " + used/1024 + " KB used of " + capacity/1024 + " KB ("
+				+ (capacity > 0 ? 100*used/capacity : 0) + "%), " + drawCalls + " draw calls last frame";
+	}
+
+	/** Largest shift keeping (REGION*chunkSize) within a byte */
+	private static int regionShift(){
+		int shift = 0;
+		while((ChunkManager.chunkSize << (shift+1)) <= 255){
+			shift++;
+		}
+		return shift;
+	}
+}
@@ -0,0 +1,102 @@
+package julien.voxel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * Reusable direct buffers for building chunk meshes. Direct memory is only freed when the garbage collector
+ * gets around to it, so allocating a fresh worst case buffer for every chunk makes native memory spike.
+ * Each meshing thread gets one worst case scratch buffer it keeps forever. The finished mesh is copied into
+ * a buffer from the pool that fits it, which goes back to the pool once it's been uploaded.
+ * Safe to use from any thread.
+ */
+public class MeshBufferPool {
+	/** Smallest pooled buffer, in bytes. Sizes go up in powers of two from here */
+	static final int MIN_SIZE = 4096;
+	/** Free buffers, indexed by power of two size class */
+	private static final ConcurrentLinkedQueue<ByteBuffer>[] free = newClasses();
+	/** Per thread scratch buffer, big enough for any chunk */
+	private static final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			int size = Chunk.chunkSize*Chunk.chunkHeight*Chunk.chunkSize*36*Chunk.VERTEX_SIZE;
+			allocated.addAndGet(size);
+			return Buffers.newDirectByteBuffer(size);
+		}
+	};
+	/** Direct bytes allocated by the pool, scratch buffers included. Nothing is ever freed, so this only grows */
+	private static final AtomicLong allocated = new AtomicLong();
+	/** Bytes of pooled buffers currently handed out */
+	private static final AtomicLong inUse = new AtomicLong();
+	/** Most bytes of pooled buffers ever handed out at once */
+	private static final AtomicLong highWater = new AtomicLong();
+
+	/** The calling thread's scratch buffer, cleared and ready to be filled */
+	public static ByteBuffer scratch(){
+		ByteBuffer b = scratch.get();
+		b.clear();
+		return b;
+	}
+
+	/** Gets a direct buffer of at least the given size, with its limit set to exactly that size.
+	 * Give it back with release when done */
+	public static ByteBuffer acquire(int bytes){
+		int sizeClass = sizeClass(bytes);
+		ByteBuffer b = free[sizeClass].poll();
+		if(b == null){
+			b = Buffers.newDirectByteBuffer(MIN_SIZE << sizeClass);
+			allocated.addAndGet(b.capacity());
+		}
+		long used = inUse.addAndGet(b.capacity());
+		long high = highWater.get();
+		while(used > high && !highWater.compareAndSet(high, used)){
+			high = highWater.get();
+		}
+		b.clear();
+		b.limit(bytes);
+		return b;
+	}
+
+	/** Returns a buffer from acquire to the pool. The buffer must not be used afterwards */
+	public static void release(ByteBuffer b){
+		inUse.addAndGet(-b.capacity());
+		free[sizeClass(b.capacity())].add(b);
+	}
+
+	/** Direct bytes allocated by the pool so far */
+	public static long getAllocated(){
+		return allocated.get();
+	}
+
+	/** Most bytes of pooled buffers handed out at once */
+	public static long getHighWater(){
+		return highWater.get();
+	}
+
+	/** One line summary for the console */
+	public static String report(){
+		return "Mesh buffers: " + allocated.get()/1024 + " KB allocated, " + inUse.get()/1024 + " KB in use, "
+				+ highWater.get()/1024 + " KB high-water mark";
+	}
+
+	/** Index of the smallest power of two size class, MIN_SIZE << index, that holds the given number of bytes.
+	 * VboRecycler sizes its buffers the same way */
+	static int sizeClass(int bytes){
+		if(bytes <= MIN_SIZE){
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros((bytes-1)/MIN_SIZE);
+	}
+
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static ConcurrentLinkedQueue<ByteBuffer>[] newClasses(){
+		ConcurrentLinkedQueue<ByteBuffer>[] classes = new ConcurrentLinkedQueue[32];
+		for(int i = 0; i < classes.length; i++){
+			classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+		return classes;
+	}
+}
@@ -0,0 +1,270 @@
+package julien.voxel;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line tool that generates and meshes a rectangle of chunk columns without opening a window, for
+ * reviewing or shipping a fixed area of the world:
+ * <pre>java -cp voxel.jar julien.voxel.Prebake [-threads n] [-chunkSize n] [-w n] [-obj file.obj] x z width depth out.mesh</pre>
+ * The rectangle is split into tiles of TILE x TILE columns, baked in parallel on a fork-join pool. Each tile
+ * generates its chunks plus a ring of neighbors, so faces on its border are culled against real blocks just like
+ * in the game, and meshes them with the same Chunk code the game uses. Tiles share nothing but the output files.
+ * The mesh file is big-endian ints: magic, version, chunk size, chunk height, layers, MeshArena.REGION_SHIFT, w,
+ * x, z, width, depth. Then a record per chunk with anything to draw, in no particular order: chunk x, y, z,
+ * vertex count, and the vertices as Chunk.VERTEX_SIZE bytes each, as the game uploads them. Positions are
+ * relative to the chunk's MeshArena region, its corner is at (x >> REGION_SHIFT << REGION_SHIFT)*chunkSize,
+ * likewise for z. The OBJ file has the same triangles in world coordinates, with vertex colors.
+ */
+public class Prebake {
+	/** Marks a mesh file, "VXMS" */
+	public static final int MAGIC = 0x56584D53;
+	/** Format version */
+	public static final int VERSION = 1;
+	/** Chunk columns across a tile */
+	private static final int TILE = 16;
+	/** Bytes of the file header */
+	private static final int HEADER = 44;
+	/** Bytes of a record before its vertices */
+	private static final int RECORD = 16;
+	/** First column and size of the rectangle */
+	private final int x0, z0, width, depth;
+	/** Position along w, when the terrain is 4D */
+	private final int w;
+	/** Mesh file, written by one tile at a time */
+	private final FileChannel out;
+	/** OBJ file, null if none is wanted */
+	private final Writer obj;
+	/** Chunks baked, those with something to draw, and their vertices */
+	private final AtomicLong chunks = new AtomicLong(), meshed = new AtomicLong(), vertices = new AtomicLong();
+	/** Bytes written to the mesh file and the OBJ file */
+	private long meshBytes = 0, objBytes = 0;
+
+	/** Bakes the tiles from first up to first + count, splitting the range until it's one tile */
+	private class Tiles extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int first, count;
+
+		Tiles(int first, int count){
+			this.first = first;
+			this.count = count;
+		}
+
+		@Override
+		protected void compute(){
+			if(count == 1){
+				try {
+					bake(first);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			} else {
+				invokeAll(new Tiles(first, count/2), new Tiles(first + count/2, count - count/2));
+			}
+		}
+	}
+
+	private Prebake(int x0, int z0, int width, int depth, int w, FileChannel out, Writer obj){
+		this.x0 = x0;
+		this.z0 = z0;
+		this.width = width;
+		this.depth = depth;
+		this.w = w;
+		this.out = out;
+		this.obj = obj;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int w = 0;
+		String objPath = null;
+		int x = 0, z = 0, width = 0, depth = 0;
+		int i = 0;
+		try {
+			for(; i < args.length && args[i].startsWith("-") && !args[i].matches("-\\d+"); i += 2){ // negative numbers are coordinates
+				if(args[i].equals("-threads")){
+					threads = Integer.parseInt(args[i+1]);
+				} else if(args[i].equals("-chunkSize")){
+					GUI.chunkSize = Integer.parseInt(args[i+1]);
+				} else if(args[i].equals("-w")){
+					w = Integer.parseInt(args[i+1]);
+					GUI.fourD = true;
+				} else if(args[i].equals("-obj")){
+					objPath = args[i+1];
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+			if(args.length - i != 5 || threads < 1 || GUI.chunkSize < 4 || GUI.chunkSize > 128){
+				throw new IllegalArgumentException();
+			}
+			x = Integer.parseInt(args[i]);
+			z = Integer.parseInt(args[i+1]);
+			width = Integer.parseInt(args[i+2]);
+			depth = Integer.parseInt(args[i+3]);
+			if(width < 1 || depth < 1){
+				throw new IllegalArgumentException();
+			}
+		} catch (RuntimeException e) {
+			System.err.println("Usage: Prebake [-threads n] [-chunkSize n] [-w n] [-obj file.obj] x z width depth out.mesh");
+			System.exit(2);
+		}
+		// ChunkManager.heights is sized by the draw distance, make it hold every thread's tile at once
+		GUI.drawDistance = (int) Math.ceil(((TILE+2)*Math.sqrt(threads) - 3)/2);
+		FileChannel out = new FileOutputStream(args[i+4]).getChannel();
+		Writer obj = objPath != null ? new BufferedWriter(new FileWriter(objPath), 1 << 16) : null;
+		Prebake bake = new Prebake(x, z, width, depth, w, out, obj);
+		long start = System.nanoTime();
+		try {
+			bake.run(threads);
+		} catch (RuntimeException e) {
+			System.err.println("Prebake failed: " + (e.getCause() != null ? e.getCause() : e));
+			System.exit(1);
+		} finally {
+			out.close();
+			if(obj != null){
+				obj.close();
+			}
+		}
+		double seconds = (System.nanoTime() - start)/1e9;
+		System.out.println(bake.report(seconds, threads));
+	}
+
+	/** Writes the header and bakes every tile on a pool of the given number of threads */
+	private void run(int threads) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC).putInt(VERSION).putInt(ChunkManager.chunkSize).putInt(ChunkManager.chunkHeight)
+				.putInt(ChunkManager.chunkLayers).putInt(MeshArena.REGION_SHIFT).putInt(w)
+				.putInt(x0).putInt(z0).putInt(width).putInt(depth).flip();
+		write(new ByteBuffer[] {header});
+		int tiles = tilesAcross(width)*tilesAcross(depth);
+		if(tiles > 0){
+			new ForkJoinPool(threads).invoke(new Tiles(0, tiles));
+		}
+	}
+
+	private static int tilesAcross(int columns){
+		return (columns + TILE-1)/TILE;
+	}
+
+	/** Generates a tile's chunks and the ring around them, meshes the tile's own and writes them */
+	private void bake(int tile) throws IOException {
+		int tx = x0 + tile%tilesAcross(width)*TILE, tz = z0 + tile/tilesAcross(width)*TILE;
+		int cw = Math.min(TILE, x0 + width - tx), cd = Math.min(TILE, z0 + depth - tz);
+		int layers = ChunkManager.chunkLayers;
+		Chunk[][][] grid = new Chunk[cw+2][layers][cd+2];
+		for(int x = 0; x < cw+2; x++){
+			for(int y = 0; y < layers; y++){
+				for(int z = 0; z < cd+2; z++){
+					grid[x][y][z] = new Chunk(tx + x-1, y, tz + z-1);
+					grid[x][y][z].generate(w);
+				}
+			}
+		}
+		ArrayList<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		StringBuilder text = obj != null ? new StringBuilder() : null;
+		ArrayList<Chunk> built = new ArrayList<Chunk>();
+		try {
+			for(int x = 1; x <= cw; x++){
+				for(int y = 0; y < layers; y++){
+					for(int z = 1; z <= cd; z++){
+						Chunk c = grid[x][y][z];
+						for(int side = 0; side < 6; side++){
+							int ny = y + Chunk.OFFSET[side][1];
+							if(ny >= 0 && ny < layers){
+								c.setNeighbor(side, grid[x + Chunk.OFFSET[side][0]][ny][z + Chunk.OFFSET[side][2]]);
+							}
+						}
+						c.buildMesh();
+						built.add(c);
+						ByteBuffer mesh = c.getMesh();
+						if(mesh == null){
+							continue;
+						}
+						mesh = mesh.duplicate();
+						int count = mesh.remaining()/Chunk.VERTEX_SIZE;
+						ByteBuffer record = ByteBuffer.allocate(RECORD);
+						record.putInt(c.pos[0]).putInt(c.pos[1]).putInt(c.pos[2]).putInt(count).flip();
+						records.add(record);
+						records.add(mesh);
+						if(text != null){
+							appendObj(text, c, mesh);
+						}
+						meshed.incrementAndGet();
+						vertices.addAndGet(count);
+					}
+				}
+			}
+			write(records.toArray(new ByteBuffer[records.size()]));
+			if(text != null){
+				writeObj(text);
+			}
+		} finally {
+			for(Chunk c : built){
+				c.discardMesh(); // the mesh buffers go back to the pool for the next tile
+			}
+		}
+		chunks.addAndGet(cw*cd*layers);
+	}
+
+	/** Appends a chunk's triangles as OBJ: three colored vertices in world coordinates, then a face using them */
+	private static void appendObj(StringBuilder text, Chunk c, ByteBuffer mesh){
+		int size = ChunkManager.chunkSize;
+		int originX = MeshArena.region(c.pos[0]) << MeshArena.REGION_SHIFT, originZ = MeshArena.region(c.pos[2]) << MeshArena.REGION_SHIFT;
+		float len = ChunkManager.len;
+		for(int v = mesh.position(); v < mesh.limit(); v += Chunk.VERTEX_SIZE){
+			float[] color = BlockType.color((byte) (mesh.get(v+3) & 15));
+			text.append("v ").append((originX*size + (mesh.get(v) & 0xFF))*len).append(' ')
+					.append((mesh.get(v+1) & 0xFF)*len).append(' ')
+					.append((originZ*size + (mesh.get(v+2) & 0xFF))*len).append(' ')
+					.append(color[0]).append(' ').append(color[1]).append(' ').append(color[2]).append('\n');
+			if((v - mesh.position())/Chunk.VERTEX_SIZE % 3 == 2){
+				text.append("f -3 -2 -1\n");
+			}
+		}
+	}
+
+	/** Appends buffers to the mesh file, all of them before any other tile's */
+	private synchronized void write(ByteBuffer[] buffers) throws IOException {
+		for(ByteBuffer b : buffers){
+			meshBytes += b.remaining();
+		}
+		for(int i = 0; i < buffers.length;){
+			out.write(buffers, i, buffers.length - i);
+			while(i < buffers.length && !buffers[i].hasRemaining()){
+				i++;
+			}
+		}
+	}
+
+	/** Appends a tile's text to the OBJ file */
+	private void writeObj(StringBuilder text) throws IOException {
+		synchronized(obj){
+			obj.append(text);
+			objBytes += text.length();
+		}
+	}
+
+	/** Throughput and sizes, for the console */
+	private String report(double seconds, int threads){
+		StringBuilder sb = new StringBuilder();
+		sb.append("Baked ").append(chunks.get()).append(" chunks (").append(meshed.get()).append(" with faces, ")
+				.append(vertices.get()).append(" vertices) on ").append(threads).append(" threads in ")
+				.append(String.format("%.2f s: %.0f chunks/s", seconds, chunks.get()/seconds)).append('\n');
+		sb.append("Mesh file: ").append(meshBytes/1024).append(" KB");
+		if(obj != null){
+			sb.append(", OBJ file: ").append(objBytes/1024).append(" KB");
+		}
+		sb.append('\n').append(ChunkManager.heights.report());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,150 @@
+package julien.voxel;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * RenderBackend that draws nothing and keeps no vertex data, it only counts calls, bytes uploaded and buffers
+ * alive. Misuse a real driver would let slide (uploading past a buffer's end, using a deleted buffer, drawing
+ * outside begin and end) throws IllegalStateException, so leaks and bookkeeping bugs show up without a GPU.
+ */
+public class RecordingBackend implements RenderBackend {
+	/** Capacity of each live buffer, by ID */
+	private final HashMap<Integer, Integer> buffers = new HashMap<Integer, Integer>();
+	/** Next ID handed out */
+	private int nextId = 1;
+	/** Between begin and end */
+	private boolean drawing = false;
+	/** Buffers created and deleted */
+	private long created = 0, deleted = 0;
+	/** Bytes of the live buffers */
+	private long liveBytes = 0;
+	/** Uploads, and bytes they copied */
+	private long uploads = 0, uploadedBytes = 0;
+	/** Frames begun */
+	private long frames = 0;
+	/** Draw calls, ranges they drew, and vertices in those */
+	private long drawCalls = 0, ranges = 0, vertices = 0;
+
+	@Override
+	public int createBuffer(int bytes){
+		if(bytes <= 0){
+			throw new IllegalStateException("Buffer of " + bytes + " bytes");
+		}
+		int id = nextId++;
+		buffers.put(id, bytes);
+		created++;
+		liveBytes += bytes;
+		return id;
+	}
+
+	@Override
+	public void upload(int buffer, int offset, ByteBuffer data){
+		int capacity = capacity(buffer);
+		if(offset < 0 || offset + data.remaining() > capacity){
+			throw new IllegalStateException("Upload of " + data.remaining() + " bytes at " + offset + " into buffer " + buffer
+					+ " of " + capacity + " bytes");
+		}
+		uploads++;
+		uploadedBytes += data.remaining();
+	}
+
+	@Override
+	public void deleteBuffers(int[] ids, int n){
+		for(int i = 0; i < n; i++){
+			liveBytes -= capacity(ids[i]);
+			buffers.remove(ids[i]);
+			deleted++;
+		}
+	}
+
+	@Override
+	public void begin(){
+		if(drawing){
+			throw new IllegalStateException("begin without end");
+		}
+		drawing = true;
+		frames++;
+	}
+
+	@Override
+	public void draw(int buffer, float originX, float originY, float originZ, int[] firsts, int[] counts, int n){
+		if(!drawing){
+			throw new IllegalStateException("Draw outside begin and end");
+		}
+		int capacity = capacity(buffer);
+		for(int i = 0; i < n; i++){
+			if(firsts[i] < 0 || counts[i] < 0 || (long) (firsts[i] + counts[i])*Chunk.VERTEX_SIZE > capacity){
+				throw new IllegalStateException("Draw of vertices " + firsts[i] + " to " + (firsts[i] + counts[i]) + " from buffer "
+						+ buffer + " of " + capacity + " bytes");
+			}
+			vertices += counts[i];
+		}
+		ranges += n;
+		drawCalls++;
+	}
+
+	@Override
+	public void end(){
+		if(!drawing){
+			throw new IllegalStateException("end without begin");
+		}
+		drawing = false;
+	}
+
+	/** Capacity of a live buffer, throws if it isn't one */
+	private int capacity(int buffer){
+		Integer capacity = buffers.get(buffer);
+		if(capacity == null){
+			throw new IllegalStateException("Buffer " + buffer + " doesn't exist");
+		}
+		return capacity;
+	}
+
+	/** Buffers created and not deleted */
+	public int getLiveBuffers(){
+		return buffers.size();
+	}
+
+	/** Bytes of the buffers created and not deleted */
+	public long getLiveBytes(){
+		return liveBytes;
+	}
+
+	/** Buffers created so far */
+	public long getCreated(){
+		return created;
+	}
+
+	/** Buffers deleted so far */
+	public long getDeleted(){
+		return deleted;
+	}
+
+	/** Uploads so far */
+	public long getUploads(){
+		return uploads;
+	}
+
+	/** Bytes uploaded so far */
+	public long getUploadedBytes(){
+		return uploadedBytes;
+	}
+
+	/** Draw calls so far */
+	public long getDrawCalls(){
+		return drawCalls;
+	}
+
+	/** Vertices drawn so far */
+	public long getVertices(){
+		return vertices;
+	}
+
+	/** One line summary for the console */
+	public String report(){
+		return "Recording backend: " + buffers.size() + " live buffers (" + liveBytes/1024 + " KB), " + created + " created, "
+				+ deleted + " deleted, " + uploads + " uploads (" + uploadedBytes/1024 + " KB), " + frames + " frames, "
+				+ drawCalls + " draw calls, " + ranges + " ranges, " + vertices + " vertices";
+	}
+}
@@ -0,0 +1,547 @@
+package julien.voxel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Saves generated and edited chunks to disk, so a revisited chunk is read back instead of generated again (about
+ * half the time when its heightmap has left the cache), and edits survive the chunk unloading and the program exiting.
+ * Chunks are grouped into region files of REGION x REGION columns. A region file starts with a header and
+ * a table with the offset, length and CRC32 of each chunk's payload, appended after it: the chunk's
+ * BlockStorage as it is in memory (palette and packed indices), deflated.
+ * Any number of threads can read at once, through a memory mapping of the file. Writes go through a single
+ * writer thread, and only one process at a time gets to write (the others just read). Until a write is on
+ * disk, reads of that chunk get the blocks being written.
+ * The writer saves chunks in batches: it writes the payloads and forces them to disk, then the table entries
+ * and forces those, and only then frees the space the old entries pointed at. Later payloads go into the
+ * first free range they fit in, so a file only grows when no dead space is big enough. A crash leaves every
+ * chunk with its new or its old payload, and the CRC is checked on every read, so an entry torn by a crash
+ * only loses that chunk: it reads as missing and is generated again.
+ */
+public class RegionStore {
+	/** log2 of REGION */
+	public static final int REGION_SHIFT = 5;
+	/** Chunk columns across a region file */
+	public static final int REGION = 1 << REGION_SHIFT;
+	/** Marks a region file, "VXRG" */
+	private static final int MAGIC = 0x56585247;
+	/** Format version, bumped whenever the format or the terrain function changes */
+	private static final int VERSION = 2;
+	/** Bytes per table entry: offset, length and CRC32 of the payload */
+	private static final int ENTRY = 12;
+	/** Chunks per region file */
+	private static final int SLOTS = REGION*REGION*ChunkManager.chunkLayers;
+	/** Bytes before the first payload: magic, version, chunk size, chunk height, layers, then the table */
+	private static final int HEADER = 20 + SLOTS*ENTRY;
+	/** Most chunks the writer saves between two forces to disk */
+	private static final int BATCH = 64;
+	/** Folder holding the region files */
+	private final File dir;
+	/** Open region files by packed region position */
+	private final ConcurrentHashMap<Long, Region> regions = new ConcurrentHashMap<Long, Region>();
+	/** Regions found to have no file, so reads of fresh terrain don't lock and check the disk for every chunk.
+	 * Only this process's writer creates region files: one another process creates isn't seen until reopening */
+	private final ConcurrentHashMap<Long, Boolean> missing = new ConcurrentHashMap<Long, Boolean>();
+	/** The only thread that writes, null if another process holds the lock */
+	private final ExecutorService writer;
+	/** Blocks handed to the writer thread and not written yet, by packed chunk position */
+	private final ConcurrentHashMap<Long, BlockStorage> pending = new ConcurrentHashMap<Long, BlockStorage>();
+	/** Compressed chunks waiting for the writer thread, in the order they were saved */
+	private final ConcurrentLinkedQueue<Write> queued = new ConcurrentLinkedQueue<Write>();
+	/** Run by the writer thread once per write, saves what is queued */
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+	/** Lock on the folder that makes this process the writer */
+	private FileLock lock;
+	/** Per thread inflater, deflater and buffers, so reads and writes allocate little */
+	private static final ThreadLocal<Codec> codec = new ThreadLocal<Codec>() {
+		@Override
+		protected Codec initialValue() {
+			return new Codec();
+		}
+	};
+	/** Chunks read back from disk */
+	private final AtomicLong reads = new AtomicLong();
+	/** Chunks written */
+	private final AtomicLong writes = new AtomicLong();
+	/** Chunks written into dead space instead of at the end of the file */
+	private final AtomicLong reused = new AtomicLong();
+	/** Entries that failed the CRC or pointed outside the file */
+	private final AtomicLong corrupt = new AtomicLong();
+
+	/** Buffers and zlib state of one thread */
+	private static class Codec {
+		final Inflater inflater = new Inflater();
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		final CRC32 crc = new CRC32();
+		/** Uncompressed payload */
+		final ByteBuffer raw = ByteBuffer.allocate(BlockStorage.MAX_SERIALIZED);
+		/** Compressed payload */
+		byte[] packed = new byte[BlockStorage.MAX_SERIALIZED + 64];
+	}
+
+	/** A compressed chunk on its way to disk */
+	private static class Write {
+		final int x, y, z;
+		final BlockStorage blocks;
+		final ByteBuffer payload;
+		final int crc;
+
+		Write(int x, int y, int z, BlockStorage blocks, ByteBuffer payload, int crc){
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.blocks = blocks;
+			this.payload = payload;
+			this.crc = crc;
+		}
+	}
+
+	/** A payload's place in a region file, and the table entry that points or will point at it */
+	private static class Placed {
+		final Region region;
+		final int entry;
+		int offset, length, crc;
+
+		Placed(Region region, int entry, int offset, int length){
+			this.region = region;
+			this.entry = entry;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/** One region file. Its channel is shared by the readers and the writer, positional reads and writes are
+	 * safe together */
+	private static class Region {
+		final RandomAccessFile file;
+		final FileChannel channel;
+		/** Read only mapping of the file, replaced by a bigger one when the file has grown */
+		volatile MappedByteBuffer map;
+		/** Dead space between payloads, length by offset. Only the writer thread uses it, null until its first write */
+		TreeMap<Integer, Integer> free;
+
+		Region(RandomAccessFile file) throws IOException {
+			this.file = file;
+			this.channel = file.getChannel();
+			this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		/** A mapping covering at least the given number of bytes, or the whole file if it is shorter */
+		ByteBuffer map(long bytes) throws IOException {
+			MappedByteBuffer m = map;
+			if(m.capacity() < bytes){
+				synchronized(this){
+					m = map;
+					if(m.capacity() < bytes){
+						m = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+						map = m;
+					}
+				}
+			}
+			return m.duplicate(); // own position, so threads don't disturb each other
+		}
+	}
+
+	/** Opens the store in a folder, creating it if needed. Becomes the writer unless another process is */
+	public RegionStore(File dir){
+		this.dir = dir;
+		dir.mkdirs();
+		FileChannel lockFile = null;
+		try {
+			lockFile = new RandomAccessFile(new File(dir, "lock"), "rw").getChannel();
+			lock = lockFile.tryLock();
+		} catch (IOException e) {
+			lock = null;
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if(lock == null && lockFile != null){
+			try {
+				lockFile.close(); // only the writer keeps it open
+			} catch (IOException e) { }
+		}
+		if(lock == null){
+			System.err.println("Region files in " + dir + " are in use, only reading them");
+			writer = null;
+		} else {
+			writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "region-writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/** Blocks of the chunk at a chunk position, or null if it was never saved or its entry is damaged.
+	 * Safe to call from any thread */
+	public BlockStorage read(int x, int y, int z){
+		if(y < 0 || y >= ChunkManager.chunkLayers){
+			return null;
+		}
+		BlockStorage unwritten = pending.get(ChunkMap.key(x, y, z));
+		if(unwritten != null){
+			return unwritten; // a chunk unloaded and loaded again before the writer got to it
+		}
+		Region r = region(x >> REGION_SHIFT, z >> REGION_SHIFT, false);
+		if(r == null){
+			return null;
+		}
+		try {
+			int entry = 20 + slot(x, y, z)*ENTRY;
+			ByteBuffer map = r.map(entry + ENTRY);
+			int offset = map.getInt(entry);
+			int length = map.getInt(entry+4);
+			int crc = map.getInt(entry+8);
+			if(length == 0){
+				return null;
+			}
+			Codec c = codec.get();
+			if(offset < HEADER || length < 0 || length > c.packed.length){
+				corrupt.incrementAndGet();
+				return null;
+			}
+			map = r.map((long) offset + length);
+			if(map.capacity() < (long) offset + length){
+				corrupt.incrementAndGet(); // the table was written but the payload never made it
+				return null;
+			}
+			map.position(offset);
+			map.get(c.packed, 0, length);
+			c.crc.reset();
+			c.crc.update(c.packed, 0, length);
+			if((int) c.crc.getValue() != crc){
+				if(map.getInt(entry) != offset || map.getInt(entry+4) != length || map.getInt(entry+8) != crc){
+					return read(x, y, z); // rewritten while reading, its old space may already hold another payload
+				}
+				corrupt.incrementAndGet();
+				return null;
+			}
+			c.inflater.reset();
+			c.inflater.setInput(c.packed, 0, length);
+			c.raw.clear();
+			c.raw.limit(c.inflater.inflate(c.raw.array()));
+			BlockStorage blocks = c.inflater.finished() ? BlockStorage.readFrom(c.raw) : null;
+			if(blocks == null){
+				corrupt.incrementAndGet();
+				return null;
+			}
+			reads.incrementAndGet();
+			return blocks;
+		} catch (IOException e) {
+			return null;
+		} catch (DataFormatException e) {
+			corrupt.incrementAndGet();
+			return null;
+		}
+	}
+
+	/** Saves the blocks of the chunk at a chunk position. Compresses on the calling thread, then hands the
+	 * write to the writer thread and returns. Does nothing if another process is the writer */
+	public void write(int x, int y, int z, BlockStorage blocks){
+		if(writer == null || y < 0 || y >= ChunkManager.chunkLayers){
+			return;
+		}
+		pending.put(ChunkMap.key(x, y, z), blocks);
+		Codec c = codec.get();
+		c.raw.clear();
+		blocks.writeTo(c.raw);
+		c.deflater.reset();
+		c.deflater.setInput(c.raw.array(), 0, c.raw.position());
+		c.deflater.finish();
+		int length = 0;
+		while(!c.deflater.finished()){
+			if(length == c.packed.length){
+				c.packed = Arrays.copyOf(c.packed, c.packed.length*2);
+			}
+			length += c.deflater.deflate(c.packed, length, c.packed.length - length);
+		}
+		c.crc.reset();
+		c.crc.update(c.packed, 0, length);
+		queued.add(new Write(x, y, z, blocks, ByteBuffer.wrap(Arrays.copyOf(c.packed, length)), (int) c.crc.getValue()));
+		writer.execute(flush);
+	}
+
+	/** Saves up to BATCH queued chunks, on the writer thread. Payloads reach the disk before any entry points at
+	 * them, and entries before the space of the payloads they replace can be reused */
+	private void flush(){
+		ArrayList<Write> batch = new ArrayList<Write>();
+		Write w;
+		while(batch.size() < BATCH && (w = queued.poll()) != null){
+			batch.add(w);
+		}
+		if(batch.isEmpty()){
+			return; // an earlier run took them
+		}
+		LinkedHashMap<Long, Placed> placed = new LinkedHashMap<Long, Placed>();
+		ArrayList<Placed> replaced = new ArrayList<Placed>();
+		HashSet<Region> touched = new HashSet<Region>();
+		try {
+			for(Write write : batch){
+				Region r = region(write.x >> REGION_SHIFT, write.z >> REGION_SHIFT, true);
+				if(r == null){
+					throw new IOException("region file can't be opened");
+				}
+				if(r.free == null){
+					r.free = freeSpace(r.channel);
+				}
+				Long key = ChunkMap.key(write.x, write.y, write.z);
+				Placed p = placed.get(key);
+				if(p == null){
+					int position = 20 + slot(write.x, write.y, write.z)*ENTRY;
+					ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+					readFully(r.channel, entry, position);
+					int oldOffset = entry.getInt(0), oldLength = entry.getInt(4);
+					if(oldLength > 0 && oldOffset >= HEADER){
+						replaced.add(new Placed(r, position, oldOffset, oldLength));
+					}
+					p = new Placed(r, position, 0, 0);
+					placed.put(key, p);
+				} else {
+					release(r.free, p.offset, p.length); // saved twice in this batch, no entry ever pointed at the first
+				}
+				p.length = write.payload.remaining();
+				p.offset = (int) allocate(r, p.length);
+				p.crc = write.crc;
+				writeFully(r.channel, write.payload, p.offset);
+				touched.add(r);
+			}
+			force(touched);
+			ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+			for(Placed p : placed.values()){
+				entry.clear();
+				entry.putInt(p.offset).putInt(p.length).putInt(p.crc).flip();
+				writeFully(p.region.channel, entry, p.entry);
+			}
+			force(touched);
+			for(Placed p : replaced){
+				release(p.region.free, p.offset, p.length); // nothing on disk points at it anymore
+			}
+			writes.addAndGet(batch.size());
+		} catch (IOException e) {
+			System.err.println("Failed to save " + batch.size() + " chunks: " + e.getMessage());
+		} finally {
+			for(Write write : batch){
+				pending.remove(ChunkMap.key(write.x, write.y, write.z), write.blocks); // unless a newer write took its place
+			}
+		}
+	}
+
+	/** Finishes pending writes and closes every region file */
+	public void close(){
+		if(writer != null){
+			writer.shutdown();
+			try {
+				writer.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for(Region r : regions.values()){
+			try {
+				if(writer != null){
+					r.channel.force(false);
+				}
+				r.file.close();
+			} catch (IOException e) { }
+		}
+		regions.clear();
+		try {
+			if(lock != null){
+				lock.release();
+				lock.channel().close();
+			}
+		} catch (IOException e) { }
+	}
+
+	/** One line summary for the console */
+	public String report(){
+		return "Region store: " + reads.get() + " chunks read, " + writes.get() + " written (" + reused.get() + " into dead space), "
+				+ corrupt.get() + " damaged"
+				+ (writer == null ? " (read only)" : "");
+	}
+
+	/** Table slot of a chunk within its region */
+	private static int slot(int x, int y, int z){
+		return ((x & (REGION-1))*REGION + (z & (REGION-1)))*ChunkManager.chunkLayers + y;
+	}
+
+	/** The open region file at a region position. If it doesn't exist, or its header doesn't match, creates a
+	 * new one when create is set (only the writer thread does), otherwise returns null. A file with a bad header
+	 * is renamed aside, to r.x.z.dat.<time>.bad, rather than overwritten */
+	private Region region(int rx, int rz, boolean create){
+		Long key = ChunkMap.key(rx, 0, rz);
+		Region r = regions.get(key);
+		if(r != null){
+			return r;
+		}
+		if(!create && missing.containsKey(key)){
+			return null;
+		}
+		synchronized(regions){
+			r = regions.get(key);
+			if(r != null){
+				return r;
+			}
+			File f = new File(dir, "r." + rx + "." + rz + ".dat");
+			if(!create && !f.exists()){
+				missing.put(key, Boolean.TRUE);
+				return null;
+			}
+			try {
+				RandomAccessFile file = new RandomAccessFile(f, writer != null ? "rw" : "r");
+				if(!validHeader(file.getChannel())){
+					if(!create){
+						file.close();
+						missing.put(key, Boolean.TRUE);
+						return null;
+					}
+					if(file.length() > 0){
+						// torn, from another version or not a region file: keep whatever chunks it holds
+						file.close();
+						File bad = new File(dir, f.getName() + "." + System.currentTimeMillis() + ".bad");
+						if(!f.renameTo(bad)){
+							System.err.println("Region file " + f + " has a bad header and can't be moved aside, not saving to it");
+							return null;
+						}
+						System.err.println("Region file " + f + " has a bad header, moved it to " + bad.getName());
+						file = new RandomAccessFile(f, "rw");
+					}
+					ByteBuffer header = ByteBuffer.allocate(HEADER);
+					header.putInt(MAGIC).putInt(VERSION).putInt(ChunkManager.chunkSize).putInt(ChunkManager.chunkHeight)
+							.putInt(ChunkManager.chunkLayers).position(0);
+					writeFully(file.getChannel(), header, 0);
+				}
+				r = new Region(file);
+				regions.put(key, r);
+				missing.remove(key);
+				return r;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
+
+	/** Does a region file start with a header for this format and chunk size */
+	private static boolean validHeader(FileChannel channel) throws IOException {
+		if(channel.size() < HEADER){
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.allocate(20);
+		channel.read(header, 0);
+		header.flip();
+		return header.getInt() == MAGIC && header.getInt() == VERSION && header.getInt() == ChunkManager.chunkSize
+				&& header.getInt() == ChunkManager.chunkHeight && header.getInt() == ChunkManager.chunkLayers;
+	}
+
+	/** Offset for a payload of the given length: the start of the first free range it fits in, or the end of the file */
+	private long allocate(Region r, int length) throws IOException {
+		for(Map.Entry<Integer, Integer> range : r.free.entrySet()){
+			if(range.getValue() >= length){
+				r.free.remove(range.getKey());
+				if(range.getValue() > length){
+					r.free.put(range.getKey() + length, range.getValue() - length);
+				}
+				reused.incrementAndGet();
+				return range.getKey();
+			}
+		}
+		return r.channel.size();
+	}
+
+	/** Adds a range to the free ranges, merged with the ones on either side */
+	private static void release(TreeMap<Integer, Integer> free, int offset, int length){
+		Map.Entry<Integer, Integer> before = free.floorEntry(offset);
+		if(before != null && before.getKey() + before.getValue() == offset){
+			free.remove(before.getKey());
+			offset = before.getKey();
+			length += before.getValue();
+		}
+		Integer after = free.remove(offset + length);
+		if(after != null){
+			length += after;
+		}
+		free.put(offset, length);
+	}
+
+	/** The ranges of a region file no table entry points at, found by sorting the entries by offset */
+	private static TreeMap<Integer, Integer> freeSpace(FileChannel channel) throws IOException {
+		ByteBuffer table = ByteBuffer.allocate(SLOTS*ENTRY);
+		readFully(channel, table, 20);
+		long[] used = new long[SLOTS];
+		int n = 0;
+		long size = channel.size();
+		for(int i = 0; i < SLOTS; i++){
+			int offset = table.getInt(i*ENTRY), length = table.getInt(i*ENTRY + 4);
+			if(length > 0 && offset >= HEADER && (long) offset + length <= size){
+				used[n++] = (long) offset << 32 | length;
+			}
+		}
+		Arrays.sort(used, 0, n);
+		TreeMap<Integer, Integer> free = new TreeMap<Integer, Integer>();
+		long end = HEADER;
+		for(int i = 0; i < n; i++){
+			int offset = (int) (used[i] >>> 32), length = (int) used[i];
+			if(offset > end){
+				free.put((int) end, (int) (offset - end));
+			}
+			end = Math.max(end, (long) offset + length);
+		}
+		if(size > end){
+			free.put((int) end, (int) (size - end)); // a payload written without its entry before a crash
+		}
+		return free;
+	}
+
+	private static void force(Iterable<Region> regions) throws IOException {
+		for(Region r : regions){
+			r.channel.force(false);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+		while(b.hasRemaining()){
+			position += channel.write(b, position);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+		while(b.hasRemaining()){
+			int n = channel.read(b, position);
+			if(n < 0){
+				throw new IOException("region file ends at " + position);
+			}
+			position += n;
+		}
+	}
+}
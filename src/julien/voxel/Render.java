@@ -20,14 +20,30 @@ public class Render extends GLCanvas {
    public float[] lChange = {0.0f, 0.0f, 0.0f};
    /** How much to rotate */
    public float[] rChange = {1.0f, 0.0f};
+   /** Position along w, the fourth axis, when the terrain is 4D */
+   public float wPos = 0.0f;
+   /** How much to change wPos by */
+   public float wChange = 0.0f;
    /** Current screen aspect ratio */
    private float aspect;
+   /** Vertical field of view in degrees */
+   private static final double FOV = 45.0;
+   /** Near clipping distance */
+   private static final double NEAR = 0.1;
+   /** Far clipping distance */
+   private static final double FAR = 1000.0;
+   /** View frustum, rebuilt every frame to cull chunks */
+   private Frustum frustum = new Frustum();
    /** Chunk Manager */
    protected ChunkManager chMan;
+   /** Per frame timings and counters, visible over JMX */
+   protected FrameMetrics metrics = new FrameMetrics();
    /** Keep track of time, doesn't do much. Supposed to help smooth user input, but doesn't really. */
    private long time;
    /** Frame counter */
    private int tickCount = 0;
+   /** Print the memory counters on the next frame */
+   public volatile boolean printReport = false;
    
    /** Default constructor */
    public Render() {
@@ -57,9 +73,28 @@ public class Render extends GLCanvas {
     	  gl.glPolygonMode( GL_FRONT_AND_BACK, GL_FILL );
       }
       time = System.currentTimeMillis(); // start time
-      chMan = new ChunkManager(gl); // setup chunk manager
+      chMan = new ChunkManager(new JoglBackend(gl)); // setup chunk manager
       double m = (System.currentTimeMillis() - (double) time)/1000;
-      System.out.println("Created in: " + m);
+      System.out.println("Created in: " + m + (chMan.getRestored() > 0 ? " (" + chMan.getRestored() + " chunks from the snapshot)" : ""));
+      if(GUI.greedy){
+    	  System.out.println("Greedy meshing saved " + chMan.getVerticesSaved() + " vertices");
+      }
+      System.out.println(MeshBufferPool.report());
+      System.out.println(chMan.bufferReport());
+      System.out.println(ChunkManager.heights.report());
+      System.out.println(chMan.blockReport());
+      System.out.println(chMan.storeReport());
+      metrics.register();
+      if(GUI.metricsFile != null){
+    	  metrics.startCsv(GUI.metricsFile);
+      }
+   }
+ 
+   /** Frees the GPU memory of the chunks, called when the GL context is about to be destroyed */
+   public void release(GLAutoDrawable drawable) {
+      if(chMan != null){
+         chMan.releaseBuffers();
+      }
    }
  
    /** Called when window is resized, and first time window becomes visible. gets proper aspect ratio */
@@ -73,6 +108,7 @@ public class Render extends GLCanvas {
  
    /** Called to render each frame */
    public void draw(GLAutoDrawable drawable) {
+	   long stage = metrics.startFrame();
 	   // Limit vertical view. Prevents looking over and around yourself, also prevents gimbal locking
 	   if(rChange[1]>=Math.PI/2){
 		   rChange[1] = (float) (Math.PI/2 - 0.001);
@@ -84,7 +120,7 @@ public class Render extends GLCanvas {
 	  
 	   gl.glMatrixMode(GL_PROJECTION);
 	   gl.glLoadIdentity();             
-	   glu.gluPerspective(45.0, aspect, 0.1, 1000.0); // Setup perspective (relative to current aspect ratio)
+	   glu.gluPerspective(FOV, aspect, NEAR, FAR); // Setup perspective (relative to current aspect ratio)
 	   
 	   
        gl.glMatrixMode(GL_MODELVIEW); 
@@ -97,23 +133,57 @@ public class Render extends GLCanvas {
 			   		 0.0f, 1.0f, 0.0f);
  
       
-       chMan.render(gl);
+       frustum.update(location, rChange[0], rChange[1], FOV, aspect, NEAR, FAR);
+       stage = System.nanoTime();
+       chMan.render(frustum);
+       metrics.time(FrameMetrics.RENDER, stage);
        double tchange =  (System.currentTimeMillis() - (double) time)/15;
        // Update the viewpoint location
        location[0] += lChange[0]*Math.cos(rChange[0])*tchange + lChange[2]*Math.cos(rChange[0]+Math.PI/2)*tchange;
        location[1] += lChange[1]*tchange;
        location[2] += lChange[0]*Math.sin(rChange[0])*tchange + lChange[2]*Math.sin(rChange[0]+Math.PI/2)*tchange;
+       if(wChange != 0){
+    	   wPos += wChange*tchange;
+    	   chMan.setSlice((int) Math.floor(wPos)); // chunks follow a slice at a time, never stalling the frame
+       }
        
 	   if(tickCount%10==0){ 
+		   stage = System.nanoTime();
 		   chMan.updateUnload(location[0], location[2]); // update location in chunk manager every 10 ticks
+		   metrics.time(FrameMetrics.UPDATE_UNLOAD, stage);
 	   } else if(tickCount%10==5){
+		   stage = System.nanoTime();
 		   chMan.updateLoad(location[0], location[2]);
+		   metrics.time(FrameMetrics.UPDATE_LOAD, stage);
+	   } else if(tickCount%10==7){
+		   chMan.prioritize(location, rChange[0]); // nearest chunks, and those in view, load first
 	   }
-	   chMan.loadNext(gl, GUI.updates);
+	   stage = System.nanoTime();
+	   chMan.loadNext(GUI.updates);
+	   stage = metrics.time(FrameMetrics.LOAD_NEXT, stage);
 	   chMan.unloadNext(3*GUI.updates);
+	   metrics.time(FrameMetrics.UNLOAD_NEXT, stage);
+	   if(printReport){
+		   System.out.println(MeshBufferPool.report());
+		   System.out.println(chMan.bufferReport());
+		   System.out.println(ChunkManager.heights.report());
+		   System.out.println(chMan.blockReport());
+		   System.out.println(chMan.storeReport());
+		   System.out.println("Chunks drawn: " + chMan.getDrawn() + ", culled: " + chMan.getCulled() + ", hidden: " + chMan.getHidden()
+				   + ", queued: " + chMan.getQueued() + ", cancelled: " + chMan.getCancelled());
+		   System.out.println("Vertices drawn: " + chMan.getDrawnVertices() + " (" + chMan.getDrawnVertices()/3 + " triangles)");
+		   System.out.println(chMan.lodReport());
+		   System.out.println(metrics.report());
+		   if(GUI.fourD){
+			   System.out.println("Slice w: " + chMan.getSlice() + ", camera w: " + wPos);
+		   }
+		   printReport = false;
+	   }
+	   metrics.endFrame(chMan.getLoaded(), chMan.getQueued(), chMan.getDrawn(), chMan.getDrawnVertices(), chMan.getVboBytes(),
+			   MeshBufferPool.getAllocated());
 	   time = System.currentTimeMillis();
 	   tickCount++;
    } 
-    
+   
 
 }
\ No newline at end of file
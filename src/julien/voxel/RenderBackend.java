@@ -0,0 +1,30 @@
+package julien.voxel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The few graphics calls chunk streaming and drawing need: Vertex Buffers to create, fill and delete, and
+ * ranges of them to draw. JoglBackend makes them with OpenGL, RecordingBackend only counts them, so ChunkManager
+ * can load, mesh, upload and draw chunks with no GL context at all (benchmarks, soak tests on machines without a GPU).
+ * Every method is called on the one thread that renders.
+ */
+public interface RenderBackend {
+	/** Creates a buffer of the given number of bytes, contents undefined, and returns its ID (never 0) */
+	int createBuffer(int bytes);
+
+	/** Copies data, from its position to its limit, into a buffer starting at the given byte offset */
+	void upload(int buffer, int offset, ByteBuffer data);
+
+	/** Deletes the first n buffers of the array */
+	void deleteBuffers(int[] buffers, int n);
+
+	/** Gets ready to draw chunks. Called once a frame, before any draw */
+	void begin();
+
+	/** Draws n ranges of packed chunk vertices (see Chunk.VERTEX_SIZE) from a buffer, each given by its first vertex
+	 * and vertex count. Positions are relative to the origin, in world coordinates */
+	void draw(int buffer, float originX, float originY, float originZ, int[] firsts, int[] counts, int n);
+
+	/** Done drawing chunks for this frame */
+	void end();
+}
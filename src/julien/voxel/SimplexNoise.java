@@ -55,6 +55,19 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
     }
   }
 
+  // Flattened copies of grad3 and grad4 for the grid methods, 3 and 4 doubles per gradient.
+  // Indexing a primitive array avoids loading a Grad object for every corner.
+  private static final double[] GRAD3 = new double[12*3];
+  private static final double[] GRAD4 = new double[32*4];
+  static {
+    for(int i=0; i<12; i++) {
+      GRAD3[i*3] = grad3[i].x; GRAD3[i*3+1] = grad3[i].y; GRAD3[i*3+2] = grad3[i].z;
+    }
+    for(int i=0; i<32; i++) {
+      GRAD4[i*4] = grad4[i].x; GRAD4[i*4+1] = grad4[i].y; GRAD4[i*4+2] = grad4[i].z; GRAD4[i*4+3] = grad4[i].w;
+    }
+  }
+
   // Skewing and unskewing factors for 2, 3, and 4 dimensions
   private static final double F2 = 0.5*(Math.sqrt(3.0)-1.0);
   private static final double G2 = (3.0-Math.sqrt(3.0))/6.0;
@@ -334,6 +347,187 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
     return 27.0 * (n0 + n1 + n2 + n3 + n4);
   }
 
+  // Grid evaluation: fills out with noise sampled on a regular lattice, starting at offset.
+  // The first coordinate varies fastest: 2D sample (i,j) goes to out[offset + j*nx + i] and is
+  // noise(x0 + i*dx, y0 + j*dy); 3D and 4D extend this the same way with k, l and nz, nw.
+  // Results match the scalar noise methods to within 1e-12 (the arithmetic is the same, only
+  // the gradient tables are flattened). No objects are allocated.
+
+  public static void noise(double[] out, int offset, double x0, double y0, double dx, double dy, int nx, int ny) {
+    for(int j=0; j<ny; j++) {
+      double y = y0 + j*dy;
+      int row = offset + j*nx;
+      for(int i=0; i<nx; i++)
+        out[row+i] = sample(x0 + i*dx, y);
+    }
+  }
+
+  public static void noise(float[] out, int offset, double x0, double y0, double dx, double dy, int nx, int ny) {
+    for(int j=0; j<ny; j++) {
+      double y = y0 + j*dy;
+      int row = offset + j*nx;
+      for(int i=0; i<nx; i++)
+        out[row+i] = (float) sample(x0 + i*dx, y);
+    }
+  }
+
+  public static void noise(double[] out, int offset, double x0, double y0, double z0,
+                           double dx, double dy, double dz, int nx, int ny, int nz) {
+    for(int k=0; k<nz; k++)
+      for(int j=0; j<ny; j++) {
+        double y = y0 + j*dy, z = z0 + k*dz;
+        int row = offset + (k*ny + j)*nx;
+        for(int i=0; i<nx; i++)
+          out[row+i] = sample(x0 + i*dx, y, z);
+      }
+  }
+
+  public static void noise(float[] out, int offset, double x0, double y0, double z0,
+                           double dx, double dy, double dz, int nx, int ny, int nz) {
+    for(int k=0; k<nz; k++)
+      for(int j=0; j<ny; j++) {
+        double y = y0 + j*dy, z = z0 + k*dz;
+        int row = offset + (k*ny + j)*nx;
+        for(int i=0; i<nx; i++)
+          out[row+i] = (float) sample(x0 + i*dx, y, z);
+      }
+  }
+
+  public static void noise(double[] out, int offset, double x0, double y0, double z0, double w0,
+                           double dx, double dy, double dz, double dw, int nx, int ny, int nz, int nw) {
+    for(int l=0; l<nw; l++)
+      for(int k=0; k<nz; k++)
+        for(int j=0; j<ny; j++) {
+          double y = y0 + j*dy, z = z0 + k*dz, w = w0 + l*dw;
+          int row = offset + ((l*nz + k)*ny + j)*nx;
+          for(int i=0; i<nx; i++)
+            out[row+i] = sample(x0 + i*dx, y, z, w);
+        }
+  }
+
+  public static void noise(float[] out, int offset, double x0, double y0, double z0, double w0,
+                           double dx, double dy, double dz, double dw, int nx, int ny, int nz, int nw) {
+    for(int l=0; l<nw; l++)
+      for(int k=0; k<nz; k++)
+        for(int j=0; j<ny; j++) {
+          double y = y0 + j*dy, z = z0 + k*dz, w = w0 + l*dw;
+          int row = offset + ((l*nz + k)*ny + j)*nx;
+          for(int i=0; i<nx; i++)
+            out[row+i] = (float) sample(x0 + i*dx, y, z, w);
+        }
+  }
+
+  // Single samples for the grid methods. Same algorithm as noise(...) above, but reading the
+  // flattened gradient tables and without branches on the corner falloff: max(t,0)^4 is 0 exactly
+  // where the scalar version skips the corner.
+
+  private static double sample(double xin, double yin) {
+    double s = (xin+yin)*F2;
+    int i = fastfloor(xin+s);
+    int j = fastfloor(yin+s);
+    double t = (i+j)*G2;
+    double x0 = xin-(i-t);
+    double y0 = yin-(j-t);
+    int i1 = x0>y0 ? 1 : 0;
+    int j1 = 1-i1;
+    double x1 = x0 - i1 + G2;
+    double y1 = y0 - j1 + G2;
+    double x2 = x0 - 1.0 + 2.0 * G2;
+    double y2 = y0 - 1.0 + 2.0 * G2;
+    int ii = i & 255;
+    int jj = j & 255;
+    int g0 = permMod12[ii+perm[jj]]*3;
+    int g1 = permMod12[ii+i1+perm[jj+j1]]*3;
+    int g2 = permMod12[ii+1+perm[jj+1]]*3;
+    double t0 = Math.max(0.5 - x0*x0-y0*y0, 0.0);
+    double t1 = Math.max(0.5 - x1*x1-y1*y1, 0.0);
+    double t2 = Math.max(0.5 - x2*x2-y2*y2, 0.0);
+    t0 *= t0; t1 *= t1; t2 *= t2;
+    return 70.0 * (t0*t0*(GRAD3[g0]*x0 + GRAD3[g0+1]*y0)
+                 + t1*t1*(GRAD3[g1]*x1 + GRAD3[g1+1]*y1)
+                 + t2*t2*(GRAD3[g2]*x2 + GRAD3[g2+1]*y2));
+  }
+
+  private static double sample(double xin, double yin, double zin) {
+    double s = (xin+yin+zin)*F3;
+    int i = fastfloor(xin+s);
+    int j = fastfloor(yin+s);
+    int k = fastfloor(zin+s);
+    double t = (i+j+k)*G3;
+    double x0 = xin-(i-t);
+    double y0 = yin-(j-t);
+    double z0 = zin-(k-t);
+    // Rank the offsets like the 4D method does, which gives the same corners as the 3D if chain
+    int rankx = (x0>=y0 ? 1 : 0) + (x0>=z0 ? 1 : 0);
+    int ranky = (x0>=y0 ? 0 : 1) + (y0>=z0 ? 1 : 0);
+    int rankz = (x0>=z0 ? 0 : 1) + (y0>=z0 ? 0 : 1);
+    int i1 = rankx>=2 ? 1 : 0, j1 = ranky>=2 ? 1 : 0, k1 = rankz>=2 ? 1 : 0;
+    int i2 = rankx>=1 ? 1 : 0, j2 = ranky>=1 ? 1 : 0, k2 = rankz>=1 ? 1 : 0;
+    double x1 = x0 - i1 + G3, y1 = y0 - j1 + G3, z1 = z0 - k1 + G3;
+    double x2 = x0 - i2 + 2.0*G3, y2 = y0 - j2 + 2.0*G3, z2 = z0 - k2 + 2.0*G3;
+    double x3 = x0 - 1.0 + 3.0*G3, y3 = y0 - 1.0 + 3.0*G3, z3 = z0 - 1.0 + 3.0*G3;
+    int ii = i & 255;
+    int jj = j & 255;
+    int kk = k & 255;
+    int g0 = permMod12[ii+perm[jj+perm[kk]]]*3;
+    int g1 = permMod12[ii+i1+perm[jj+j1+perm[kk+k1]]]*3;
+    int g2 = permMod12[ii+i2+perm[jj+j2+perm[kk+k2]]]*3;
+    int g3 = permMod12[ii+1+perm[jj+1+perm[kk+1]]]*3;
+    double t0 = Math.max(0.6 - x0*x0 - y0*y0 - z0*z0, 0.0);
+    double t1 = Math.max(0.6 - x1*x1 - y1*y1 - z1*z1, 0.0);
+    double t2 = Math.max(0.6 - x2*x2 - y2*y2 - z2*z2, 0.0);
+    double t3 = Math.max(0.6 - x3*x3 - y3*y3 - z3*z3, 0.0);
+    t0 *= t0; t1 *= t1; t2 *= t2; t3 *= t3;
+    return 32.0*(t0*t0*(GRAD3[g0]*x0 + GRAD3[g0+1]*y0 + GRAD3[g0+2]*z0)
+               + t1*t1*(GRAD3[g1]*x1 + GRAD3[g1+1]*y1 + GRAD3[g1+2]*z1)
+               + t2*t2*(GRAD3[g2]*x2 + GRAD3[g2+1]*y2 + GRAD3[g2+2]*z2)
+               + t3*t3*(GRAD3[g3]*x3 + GRAD3[g3+1]*y3 + GRAD3[g3+2]*z3));
+  }
+
+  private static double sample(double x, double y, double z, double w) {
+    double s = (x + y + z + w) * F4;
+    int i = fastfloor(x + s);
+    int j = fastfloor(y + s);
+    int k = fastfloor(z + s);
+    int l = fastfloor(w + s);
+    double t = (i + j + k + l) * G4;
+    double x0 = x - (i - t);
+    double y0 = y - (j - t);
+    double z0 = z - (k - t);
+    double w0 = w - (l - t);
+    int rankx = (x0 > y0 ? 1 : 0) + (x0 > z0 ? 1 : 0) + (x0 > w0 ? 1 : 0);
+    int ranky = (x0 > y0 ? 0 : 1) + (y0 > z0 ? 1 : 0) + (y0 > w0 ? 1 : 0);
+    int rankz = (x0 > z0 ? 0 : 1) + (y0 > z0 ? 0 : 1) + (z0 > w0 ? 1 : 0);
+    int rankw = (x0 > w0 ? 0 : 1) + (y0 > w0 ? 0 : 1) + (z0 > w0 ? 0 : 1);
+    int i1 = rankx >= 3 ? 1 : 0, j1 = ranky >= 3 ? 1 : 0, k1 = rankz >= 3 ? 1 : 0, l1 = rankw >= 3 ? 1 : 0;
+    int i2 = rankx >= 2 ? 1 : 0, j2 = ranky >= 2 ? 1 : 0, k2 = rankz >= 2 ? 1 : 0, l2 = rankw >= 2 ? 1 : 0;
+    int i3 = rankx >= 1 ? 1 : 0, j3 = ranky >= 1 ? 1 : 0, k3 = rankz >= 1 ? 1 : 0, l3 = rankw >= 1 ? 1 : 0;
+    double x1 = x0 - i1 + G4, y1 = y0 - j1 + G4, z1 = z0 - k1 + G4, w1 = w0 - l1 + G4;
+    double x2 = x0 - i2 + 2.0*G4, y2 = y0 - j2 + 2.0*G4, z2 = z0 - k2 + 2.0*G4, w2 = w0 - l2 + 2.0*G4;
+    double x3 = x0 - i3 + 3.0*G4, y3 = y0 - j3 + 3.0*G4, z3 = z0 - k3 + 3.0*G4, w3 = w0 - l3 + 3.0*G4;
+    double x4 = x0 - 1.0 + 4.0*G4, y4 = y0 - 1.0 + 4.0*G4, z4 = z0 - 1.0 + 4.0*G4, w4 = w0 - 1.0 + 4.0*G4;
+    int ii = i & 255;
+    int jj = j & 255;
+    int kk = k & 255;
+    int ll = l & 255;
+    int g0 = (perm[ii+perm[jj+perm[kk+perm[ll]]]] & 31)*4;
+    int g1 = (perm[ii+i1+perm[jj+j1+perm[kk+k1+perm[ll+l1]]]] & 31)*4;
+    int g2 = (perm[ii+i2+perm[jj+j2+perm[kk+k2+perm[ll+l2]]]] & 31)*4;
+    int g3 = (perm[ii+i3+perm[jj+j3+perm[kk+k3+perm[ll+l3]]]] & 31)*4;
+    int g4 = (perm[ii+1+perm[jj+1+perm[kk+1+perm[ll+1]]]] & 31)*4;
+    double t0 = Math.max(0.6 - x0*x0 - y0*y0 - z0*z0 - w0*w0, 0.0);
+    double t1 = Math.max(0.6 - x1*x1 - y1*y1 - z1*z1 - w1*w1, 0.0);
+    double t2 = Math.max(0.6 - x2*x2 - y2*y2 - z2*z2 - w2*w2, 0.0);
+    double t3 = Math.max(0.6 - x3*x3 - y3*y3 - z3*z3 - w3*w3, 0.0);
+    double t4 = Math.max(0.6 - x4*x4 - y4*y4 - z4*z4 - w4*w4, 0.0);
+    t0 *= t0; t1 *= t1; t2 *= t2; t3 *= t3; t4 *= t4;
+    return 27.0 * (t0*t0*(GRAD4[g0]*x0 + GRAD4[g0+1]*y0 + GRAD4[g0+2]*z0 + GRAD4[g0+3]*w0)
+                 + t1*t1*(GRAD4[g1]*x1 + GRAD4[g1+1]*y1 + GRAD4[g1+2]*z1 + GRAD4[g1+3]*w1)
+                 + t2*t2*(GRAD4[g2]*x2 + GRAD4[g2+1]*y2 + GRAD4[g2+2]*z2 + GRAD4[g2+3]*w2)
+                 + t3*t3*(GRAD4[g3]*x3 + GRAD4[g3+1]*y3 + GRAD4[g3+2]*z3 + GRAD4[g3+3]*w3)
+                 + t4*t4*(GRAD4[g4]*x4 + GRAD4[g4+1]*y4 + GRAD4[g4+2]*z4 + GRAD4[g4+3]*w4));
+  }
+
   // Inner class to speed upp gradient computations
   // (array access is a lot slower than member access)
   private static class Grad
@@ -0,0 +1,198 @@
+package julien.voxel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The chunks around the spawn point as they stand once the initial load is done: blocks, meshes and the state
+ * ChunkManager keeps about them, in one file. The next start with the same settings maps the file and uploads the
+ * meshes straight out of the mapping, instead of generating and meshing every chunk before the first frame.
+ * The file starts with a header holding the key (terrain version, chunk shape, draw distance, spawn chunk and the
+ * meshing options), the number of chunks, and the length and CRC32 of the rest. Then a record per chunk from
+ * Chunk.writeSnapshot. It's written to a temporary file renamed over the old one, so it's whole or not there.
+ * Edits to the world make it stale, it's deleted on the first one, with or without warm starts, and written again
+ * after the next cold start.
+ */
+public class Snapshot {
+	/** Marks a snapshot file, "VXSN" */
+	private static final int MAGIC = 0x5658534E;
+	/** Format version */
+	private static final int VERSION = 1;
+	/** Bumped whenever the terrain function changes. It stands in for a seed, the terrain has none */
+	private static final int TERRAIN_VERSION = 1;
+	/** Bytes of the header: 16 ints */
+	private static final int HEADER = 64;
+	/** Largest snapshot kept, the records are built on the heap in one piece. Bigger starting areas get none.
+	 * Tests lower it */
+	static long maxBytes = 256L << 20;
+	/** The snapshot file */
+	private final File file;
+	/** Header ints after the magic and version that must match, see key */
+	private final int[] key;
+	/** Last mesh uploaded for each chunk during the initial load, by packed position. Null once sealed */
+	private HashMap<Long, byte[]> meshes = new HashMap<Long, byte[]>();
+	/** Records to write on close, null until seal */
+	private ByteBuffer records;
+	/** Number of records */
+	private int count;
+
+	/** Creates a snapshot kept in the given file, for a world centered on chunk column (spawnX, spawnZ) */
+	public Snapshot(File file, int spawnX, int spawnZ){
+		this.file = file;
+		this.key = new int[] {TERRAIN_VERSION, ChunkManager.chunkSize, ChunkManager.chunkHeight, ChunkManager.chunkLayers,
+				GUI.drawDistance, spawnX, spawnZ, GUI.fourD ? 1 : 0, GUI.greedy ? 1 : 0, GUI.lod ? 1 : 0, MeshArena.REGION_SHIFT};
+	}
+
+	/** Reads the chunks from the file if it's there, whole, and was made with the same key. Their meshes are ready
+	 * to upload from the mapped file, which stays mapped until they are. Returns null otherwise */
+	public List<Chunk> restore(){
+		if(!file.isFile()){
+			return null;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				if(channel.size() < HEADER){
+					return null;
+				}
+				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // stays valid after close
+				if(map.getInt() != MAGIC || map.getInt() != VERSION){
+					return null;
+				}
+				for(int k : key){
+					if(map.getInt() != k){
+						return null;
+					}
+				}
+				int chunks = map.getInt();
+				long length = map.getInt() & 0xFFFFFFFFL;
+				int crc = map.getInt();
+				if(HEADER + length != channel.size()){
+					return null;
+				}
+				map.position(HEADER);
+				CRC32 check = new CRC32();
+				check.update(map.duplicate());
+				if((int) check.getValue() != crc){
+					return null;
+				}
+				ArrayList<Chunk> restored = new ArrayList<Chunk>(chunks);
+				for(int i = 0; i < chunks; i++){
+					Chunk c = Chunk.readSnapshot(map);
+					if(c == null){
+						return null;
+					}
+					restored.add(c);
+				}
+				return restored;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Snapshot " + file + " could not be read: " + e);
+			return null;
+		}
+	}
+
+	/** Keeps a copy of the mesh a chunk is about to upload. Call for every upload during the initial load */
+	public void capture(Chunk c){
+		ByteBuffer mesh = c.getMesh();
+		byte[] copy = new byte[mesh == null ? 0 : mesh.remaining()];
+		if(mesh != null){
+			mesh.duplicate().get(copy);
+		}
+		meshes.put(c.key(), copy);
+	}
+
+	/** Builds the records of the given chunks, now that the initial load is done, so close can write them.
+	 * If they would take more than maxBytes, there is no snapshot and an old file is deleted.
+	 * Captured meshes are dropped */
+	public void seal(List<Chunk> chunks){
+		long bytes = 0;
+		for(Chunk c : chunks){
+			byte[] mesh = meshes.get(c.key());
+			if(mesh != null){
+				bytes += c.snapshotSize(mesh);
+			}
+		}
+		if(bytes > maxBytes){
+			System.out.println("No snapshot: the starting area takes " + (bytes >> 20) + " MB, more than " + (maxBytes >> 20));
+			file.delete();
+			meshes = null;
+			return;
+		}
+		records = ByteBuffer.allocate((int) bytes);
+		count = 0;
+		for(Chunk c : chunks){
+			byte[] mesh = meshes.get(c.key());
+			if(mesh != null){
+				c.writeSnapshot(records, mesh);
+				count++;
+			}
+		}
+		records.flip();
+		meshes = null;
+	}
+
+	/** Deletes a snapshot file once the world is edited, so no later start restores the old blocks */
+	public static void invalidate(File file){
+		if(file.delete()){
+			System.out.println("Snapshot deleted, the world was edited");
+		}
+	}
+
+	/** Writes the sealed records, replacing the file, or deletes the file if the world was edited since.
+	 * Deleting again here covers a file that was still mapped when the first edit tried */
+	public void close(boolean edited){
+		if(edited){
+			invalidate(file);
+			return;
+		}
+		if(records == null){
+			return; // restored, the file is still good
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			file.getParentFile().mkdirs();
+			CRC32 crc = new CRC32();
+			crc.update(records.duplicate());
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			header.putInt(MAGIC).putInt(VERSION);
+			for(int k : key){
+				header.putInt(k);
+			}
+			header.putInt(count).putInt(records.remaining()).putInt((int) crc.getValue()).flip();
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				raf.setLength(0);
+				FileChannel channel = raf.getChannel();
+				ByteBuffer[] parts = {header, records.duplicate()};
+				while(parts[1].hasRemaining()){
+					channel.write(parts);
+				}
+				channel.force(true);
+			} finally {
+				raf.close();
+			}
+			if(!temp.renameTo(file)){
+				file.delete(); // renameTo doesn't replace on every platform
+				if(!temp.renameTo(file)){
+					throw new IOException("can't rename " + temp);
+				}
+			}
+			System.out.println("Snapshot saved: " + count + " chunks, " + (HEADER + records.limit())/1024 + " KB");
+		} catch (IOException e) {
+			System.err.println("Snapshot " + file + " could not be written: " + e);
+			temp.delete();
+		}
+	}
+}
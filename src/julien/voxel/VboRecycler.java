@@ -0,0 +1,122 @@
+package julien.voxel;
+
+/**
+ * Hands out Vertex Buffer Objects and takes them back when chunks are unloaded, so a chunk that loads
+ * can reuse the buffer of one that was just unloaded instead of creating one again.
+ * Buffers are allocated in power of two capacities so a freed buffer fits any mesh in its size class.
+ * Keeps counters of live and free buffers so leaks show up. Must only be used on the GL thread.
+ */
+public class VboRecycler {
+	/** Smallest buffer capacity, in bytes */
+	private static final int MIN_SIZE = MeshBufferPool.MIN_SIZE;
+	/** Most free buffers kept around, beyond this they are deleted */
+	private static final int MAX_FREE = 256;
+	/** Free buffer IDs, indexed by power of two size class */
+	private int[][] free = new int[32][];
+	/** Number of free buffers in each size class */
+	private int[] freeCount = new int[32];
+	/** Total free buffers */
+	private int freeTotal = 0;
+	/** Buffers handed out and not released */
+	private int live = 0;
+	/** Buffers ever created with glGenBuffers */
+	private int created = 0;
+	/** Buffers handed out that were recycled instead of created */
+	private int reused = 0;
+	/** Buffers deleted with glDeleteBuffers */
+	private int deleted = 0;
+	/** Bytes of every buffer that exists, live or free */
+	private long totalBytes = 0;
+	/** Where buffers are created and deleted */
+	private final RenderBackend backend;
+
+	/** Creates a recycler for buffers of the given backend */
+	public VboRecycler(RenderBackend backend){
+		this.backend = backend;
+	}
+
+	/** Gets a buffer that holds at least the given number of bytes, reusing a free one if there is one.
+	 * Its actual capacity is capacity(bytes) */
+	public int acquire(int bytes){
+		int sizeClass = MeshBufferPool.sizeClass(bytes);
+		live++;
+		if(freeCount[sizeClass] > 0){
+			freeTotal--;
+			reused++;
+			return free[sizeClass][--freeCount[sizeClass]];
+		}
+		int id = backend.createBuffer(MIN_SIZE << sizeClass);
+		created++;
+		totalBytes += MIN_SIZE << sizeClass;
+		return id;
+	}
+
+	/** Takes back a buffer from acquire. It is kept for reuse, or deleted if enough are already free */
+	public void release(int id, int capacity){
+		live--;
+		int sizeClass = MeshBufferPool.sizeClass(capacity);
+		if(freeTotal >= MAX_FREE){
+			backend.deleteBuffers(new int[] {id}, 1);
+			deleted++;
+			totalBytes -= MIN_SIZE << sizeClass;
+			return;
+		}
+		if(free[sizeClass] == null){
+			free[sizeClass] = new int[8];
+		} else if(freeCount[sizeClass] == free[sizeClass].length){
+			int[] grown = new int[free[sizeClass].length*2];
+			System.arraycopy(free[sizeClass], 0, grown, 0, freeCount[sizeClass]);
+			free[sizeClass] = grown;
+		}
+		free[sizeClass][freeCount[sizeClass]++] = id;
+		freeTotal++;
+	}
+
+	/** Deletes every free buffer */
+	public void trim(){
+		for(int i = 0; i < free.length; i++){
+			if(freeCount[i] > 0){
+				backend.deleteBuffers(free[i], freeCount[i]);
+				deleted += freeCount[i];
+				totalBytes -= (long) freeCount[i]*(MIN_SIZE << i);
+				freeTotal -= freeCount[i];
+				freeCount[i] = 0;
+			}
+		}
+	}
+
+	/** Capacity of the buffer acquire gives for the given number of bytes */
+	public static int capacity(int bytes){
+		return MIN_SIZE << MeshBufferPool.sizeClass(bytes);
+	}
+
+	/** Buffers handed out and not released */
+	public int getLive(){
+		return live;
+	}
+
+	/** Buffers waiting to be reused */
+	public int getFree(){
+		return freeTotal;
+	}
+
+	/** Buffers ever created */
+	public int getCreated(){
+		return created;
+	}
+
+	/** Buffers handed out that were recycled instead of created */
+	public int getReused(){
+		return reused;
+	}
+
+	/** Buffers deleted */
+	public int getDeleted(){
+		return deleted;
+	}
+
+	/** Bytes of Vertex Buffer memory allocated, live and free buffers both */
+	public long getBytes(){
+		return totalBytes;
+	}
+}
@@ -55,7 +55,9 @@ public class VoxelEventListener implements GLEventListener, KeyListener, MouseLi
 	}
 
 	@Override
-	public void dispose(GLAutoDrawable drawable) {	}
+	public void dispose(GLAutoDrawable drawable) {
+		canvas.release(drawable);
+	}
 
 	@Override
 	public void display(GLAutoDrawable drawable) {
@@ -156,6 +158,18 @@ public class VoxelEventListener implements GLEventListener, KeyListener, MouseLi
 		if(e.getKeyCode()==69){
 			canvas.chMan.updateLoad(canvas.location[0], canvas.location[2]);
 		}
+		// r - print memory counters
+		if(e.getKeyCode()==82){
+			canvas.printReport = true;
+		}
+		// z - move back along w
+		if(e.getKeyCode()==90){
+			canvas.wChange = -0.05f;
+		}
+		// x - move forward along w
+		if(e.getKeyCode()==88){
+			canvas.wChange = 0.05f;
+		}
 	}
 
 	@Override
@@ -184,6 +198,10 @@ public class VoxelEventListener implements GLEventListener, KeyListener, MouseLi
 				if(e.getKeyCode()==16){
 					canvas.lChange[1] = 0.0f;
 				}
+				// z or x
+				if(e.getKeyCode()==90||e.getKeyCode()==88){
+					canvas.wChange = 0.0f;
+				}
 	}
 
 	@Override
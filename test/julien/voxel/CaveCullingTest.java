@@ -0,0 +1,128 @@
+package julien.voxel;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The visibility search never hides a chunk that can be seen. Rays are cast through the view from a camera
+ * above the ground and from one in a tunnel, and the chunk of the first solid block each ray hits inside the
+ * frustum has to be among the drawn ones. The tunnel camera also has to hide something, or the search did nothing.
+ */
+public class CaveCullingTest {
+	private static final double FOV = 45.0;
+	private static final float ASPECT = 1.44f;
+	/** Rays per camera */
+	private static final int RAYS = 2000;
+	private ChunkManager manager;
+	private final Frustum frustum = new Frustum();
+	private boolean lod;
+
+	@Before
+	public void setUp(){
+		GUI.drawDistance = 6;
+		GUI.fourD = false;
+		GUI.caveCulling = true;
+		lod = GUI.lod;
+		GUI.lod = false; // coarse meshes can drop a face a ray hits, that's not what this checks
+		manager = new ChunkManager(new RecordingBackend(), null);
+		ChunkManagerTest.drain(manager);
+	}
+
+	@After
+	public void tearDown(){
+		GUI.lod = lod;
+	}
+
+	@Test
+	public void surfaceCameraSeesEveryHitChunk(){
+		float[] eye = {8.5f, ChunkManagerTest.surface(manager, 8, 8) + 6.5f, 8.5f};
+		check(eye, (float) (Math.PI/4), -0.4f);
+	}
+
+	@Test
+	public void tunnelCameraSeesEveryHitChunkAndHidesSome(){
+		int y = 8;
+		for(int x = -40; x <= 40; x++){ // a 3x3 tunnel along x, deep under the surface
+			for(int dy = 0; dy < 3; dy++){
+				for(int dz = 0; dz < 3; dz++){
+					manager.setBlock(x, y + dy, 7 + dz, (byte) 0);
+				}
+			}
+		}
+		ChunkManagerTest.drain(manager);
+		check(new float[] {-38.5f, y + 1.5f, 8.5f}, 0, 0.05f);
+		assertTrue("nothing hidden from inside the tunnel", manager.getHidden() > 0);
+	}
+
+	/** Renders from a camera, then casts rays through its view and fails on a hit chunk that wasn't drawn */
+	private void check(float[] eye, float yaw, float pitch){
+		frustum.update(eye, yaw, pitch, FOV, ASPECT, 0.1, 1000.0);
+		manager.render(frustum);
+		HashSet<Long> drawn = new HashSet<Long>();
+		for(Chunk c : manager.getDrawnChunks()){
+			drawn.add(ChunkMap.key(c.pos[0], c.pos[1], c.pos[2]));
+		}
+		float[] forward = {(float) (Math.cos(yaw)*Math.cos(pitch)), (float) Math.sin(pitch), (float) (Math.sin(yaw)*Math.cos(pitch))};
+		float[] right = {-forward[2], 0, forward[0]};
+		float norm = (float) Math.sqrt(right[0]*right[0] + right[2]*right[2]);
+		right[0] /= norm;
+		right[2] /= norm;
+		float[] up = {right[1]*forward[2] - right[2]*forward[1], right[2]*forward[0] - right[0]*forward[2],
+				right[0]*forward[1] - right[1]*forward[0]};
+		float halfV = (float) Math.tan(Math.toRadians(FOV)/2), halfH = halfV*ASPECT;
+		Random random = new Random(7);
+		int hits = 0;
+		for(int r = 0; r < RAYS; r++){
+			float u = (2*random.nextFloat() - 1)*halfH, v = (2*random.nextFloat() - 1)*halfV;
+			float[] dir = new float[3];
+			for(int i = 0; i < 3; i++){
+				dir[i] = forward[i] + u*right[i] + v*up[i];
+			}
+			int[] hit = cast(eye, dir);
+			if(hit == null || !frustum.intersects(hit[0], hit[1], hit[2], hit[0] + 1, hit[1] + 1, hit[2] + 1)){
+				continue;
+			}
+			hits++;
+			int cx = Math.floorDiv(hit[0], ChunkManager.chunkSize), cy = Math.floorDiv(hit[1], ChunkManager.chunkHeight);
+			int cz = Math.floorDiv(hit[2], ChunkManager.chunkSize);
+			if(!drawn.contains(ChunkMap.key(cx, cy, cz))){
+				fail("ray " + r + " hits block " + hit[0] + ", " + hit[1] + ", " + hit[2] + " in chunk " + cx + ", " + cy + ", " + cz
+						+ ", which wasn't drawn");
+			}
+		}
+		assertTrue("only " + hits + " rays hit anything", hits > RAYS/2);
+	}
+
+	/** First solid block along a ray, stepping block by block, or null if it leaves the loaded area first */
+	private int[] cast(float[] eye, float[] dir){
+		int[] block = new int[3], step = new int[3];
+		double[] next = new double[3], delta = new double[3];
+		for(int i = 0; i < 3; i++){
+			block[i] = (int) Math.floor(eye[i]);
+			step[i] = dir[i] > 0 ? 1 : -1;
+			delta[i] = dir[i] == 0 ? Double.MAX_VALUE : Math.abs(1/dir[i]);
+			double edge = dir[i] > 0 ? block[i] + 1 - eye[i] : eye[i] - block[i];
+			next[i] = dir[i] == 0 ? Double.MAX_VALUE : edge*delta[i];
+		}
+		int reach = (GUI.drawDistance - 1)*ChunkManager.chunkSize;
+		while(true){
+			int axis = next[0] < next[1] ? (next[0] < next[2] ? 0 : 2) : (next[1] < next[2] ? 1 : 2);
+			block[axis] += step[axis];
+			next[axis] += delta[axis];
+			if(Math.abs(block[0]) > reach || Math.abs(block[2]) > reach || block[1] < 0
+					|| block[1] >= ChunkManager.chunkHeight*ChunkManager.chunkLayers){
+				return null;
+			}
+			if(BlockType.isActive(manager.getBlock(block[0], block[1], block[2]))){
+				return block;
+			}
+		}
+	}
+}
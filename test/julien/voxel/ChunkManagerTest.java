@@ -0,0 +1,92 @@
+package julien.voxel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * ChunkManager streaming headless through a RecordingBackend: generated chunks and block edits are kept in
+ * the region store and come back when the world is opened again.
+ */
+public class ChunkManagerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp(){
+		GUI.drawDistance = 2;
+		GUI.fourD = false;
+	}
+
+	/** Builds and uploads until nothing is queued or building */
+	static void drain(ChunkManager manager){
+		long deadline = System.currentTimeMillis() + 60000;
+		while(!manager.isIdle()){
+			manager.loadNext(8);
+			assertTrue("chunk manager still busy after a minute", System.currentTimeMillis() < deadline);
+			Thread.yield();
+		}
+	}
+
+	/** Highest solid block in a column */
+	static int surface(ChunkManager manager, int x, int z){
+		int y = ChunkManager.chunkHeight*ChunkManager.chunkLayers - 1;
+		while(y > 0 && manager.getBlock(x, y, z) == 0){
+			y--;
+		}
+		return y;
+	}
+
+	@Test
+	public void generatedChunksAreSaved(){
+		File dir = folder.getRoot();
+		ChunkManager manager = new ChunkManager(new RecordingBackend(), new RegionStore(dir));
+		drain(manager);
+		int y = surface(manager, 5, 6);
+		manager.close();
+		RegionStore store = new RegionStore(dir);
+		BlockStorage blocks = store.read(0, y/ChunkManager.chunkHeight, 0);
+		store.close();
+		assertNotNull("the surface chunk wasn't saved", blocks);
+	}
+
+	@Test
+	public void editsSurviveClosing() throws IOException {
+		File dir = folder.newFolder();
+		ChunkManager manager = new ChunkManager(new RecordingBackend(), new RegionStore(dir));
+		drain(manager);
+		int y = surface(manager, 5, 6);
+		assertTrue(manager.setBlock(5, y, 6, (byte) 0));
+		manager.close(); // the chunk is still loaded, closing saves it
+		manager = new ChunkManager(new RecordingBackend(), new RegionStore(dir));
+		drain(manager);
+		assertEquals(0, manager.getBlock(5, y, 6));
+		assertEquals(y-1, surface(manager, 5, 6));
+		manager.close();
+	}
+
+	@Test
+	public void typesOutsideBlockTypeAreRejected(){
+		ChunkManager manager = new ChunkManager(new RecordingBackend(), null);
+		drain(manager);
+		int y = surface(manager, 5, 6);
+		assertTrue(manager.setBlock(5, y, 6, (byte) (BlockType.values().length - 1)));
+		for(byte type : new byte[] {(byte) BlockType.values().length, 16, -1, Byte.MIN_VALUE}){
+			try {
+				manager.setBlock(5, y, 6, type); // would overwrite the side bits of the packed vertex
+				fail("type " + type + " accepted");
+			} catch (IllegalArgumentException e) { }
+		}
+		assertEquals(BlockType.values().length - 1, manager.getBlock(5, y, 6));
+		manager.close();
+	}
+}
@@ -0,0 +1,85 @@
+package julien.voxel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * MeshArena under random allocations and frees: slots never overlap, stay inside their page and hold what was
+ * asked, uploads and draws stay inside their buffers (RecordingBackend throws otherwise), and emptied pages go
+ * back to the recycler.
+ */
+public class MeshArenaTest {
+	/** Slot ranges handed out in one page, offset to capacity */
+	private final Map<Object, TreeMap<Integer, Integer>> pages = new HashMap<Object, TreeMap<Integer, Integer>>();
+
+	/** Records a new slot, failing if it overlaps one already handed out in its page */
+	private void add(MeshArena.Slot s){
+		TreeMap<Integer, Integer> ranges = pages.get(s.page);
+		if(ranges == null){
+			ranges = new TreeMap<Integer, Integer>();
+			pages.put(s.page, ranges);
+		}
+		Map.Entry<Integer, Integer> before = ranges.floorEntry(s.offset);
+		assertTrue("slot at " + s.offset + " overlaps the one at " + (before == null ? 0 : before.getKey()),
+				before == null || before.getKey() + before.getValue() <= s.offset);
+		Map.Entry<Integer, Integer> after = ranges.higherEntry(s.offset);
+		assertTrue("slot at " + s.offset + " overlaps the one after it", after == null || s.offset + s.capacity <= after.getKey());
+		ranges.put(s.offset, s.capacity);
+	}
+
+	private void remove(MeshArena.Slot s){
+		pages.get(s.page).remove(s.offset);
+	}
+
+	@Test
+	public void randomAllocationsNeverOverlap(){
+		RecordingBackend backend = new RecordingBackend();
+		VboRecycler vbos = new VboRecycler(backend);
+		MeshArena arena = new MeshArena(vbos, backend);
+		Random random = new Random(42);
+		ArrayList<MeshArena.Slot> live = new ArrayList<MeshArena.Slot>();
+		ByteBuffer data = ByteBuffer.allocate(1 << 21);
+		for(int op = 0; op < 200000; op++){
+			if(live.isEmpty() || random.nextInt(100) < 52){
+				// mostly chunk sized meshes, now and then one bigger than a page
+				int bytes = random.nextInt(50) == 0 ? (1 << 20) + random.nextInt(1 << 20) : 1 + random.nextInt(64*1024);
+				MeshArena.Slot s = arena.allocate(random.nextInt(8) - 4, random.nextInt(8) - 4, bytes);
+				assertTrue(s.getCapacity() >= bytes);
+				assertEquals(0, s.offset % Chunk.VERTEX_SIZE);
+				add(s);
+				data.clear().limit(bytes);
+				arena.upload(s, data);
+				live.add(s);
+			} else {
+				MeshArena.Slot s = live.remove(random.nextInt(live.size()));
+				remove(s);
+				arena.free(s);
+			}
+			if(op % 1000 == 0){
+				backend.begin();
+				for(MeshArena.Slot s : live){
+					arena.draw(s, s.getCapacity()/Chunk.VERTEX_SIZE);
+				}
+				arena.flush();
+				backend.end();
+			}
+			assertEquals(live.size(), arena.getSlots());
+		}
+		for(MeshArena.Slot s : live){
+			arena.free(s);
+		}
+		assertEquals(0, arena.getSlots());
+		assertEquals("every emptied page goes back to the recycler", 0, vbos.getLive());
+		vbos.trim();
+		assertEquals(0, backend.getLiveBuffers());
+	}
+}
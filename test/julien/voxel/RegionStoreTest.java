@@ -0,0 +1,151 @@
+package julien.voxel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * RegionStore reads back what it wrote, keeps rewritten files from growing, and treats damaged or torn
+ * entries as missing chunks instead of failing.
+ */
+public class RegionStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Blocks of a few types in random places, so the payload doesn't deflate to nothing */
+	private static byte[] blocks(long seed){
+		Random r = new Random(seed);
+		byte[] b = new byte[BlockStorage.VOLUME];
+		for(int i = 0; i < b.length; i++){
+			b[i] = (byte) r.nextInt(4);
+		}
+		return b;
+	}
+
+	private static byte[] unpacked(BlockStorage s){
+		byte[] b = new byte[BlockStorage.VOLUME];
+		s.unpack(b);
+		return b;
+	}
+
+	@Test
+	public void readsBackWhatWasWritten() throws IOException {
+		File dir = folder.newFolder();
+		RegionStore store = new RegionStore(dir);
+		store.write(3, 1, -7, BlockStorage.pack(blocks(1)));
+		store.write(40, 0, 2, BlockStorage.pack(blocks(2)));
+		store.close();
+		store = new RegionStore(dir);
+		assertArrayEquals(blocks(1), unpacked(store.read(3, 1, -7)));
+		assertArrayEquals(blocks(2), unpacked(store.read(40, 0, 2)));
+		assertNull(store.read(3, 0, -7));
+		store.close();
+	}
+
+	@Test
+	public void readsWritesNotOnDiskYet() throws IOException {
+		RegionStore store = new RegionStore(folder.newFolder());
+		for(int i = 0; i < 20; i++){
+			assertNull(store.read(i, 0, 0)); // the first one finds no region file, and remembers it
+			store.write(i, 0, 0, BlockStorage.pack(blocks(i)));
+			assertArrayEquals(blocks(i), unpacked(store.read(i, 0, 0)));
+		}
+		store.close();
+	}
+
+	@Test
+	public void rewritesReuseDeadSpace() throws IOException {
+		File dir = folder.newFolder();
+		RegionStore store = new RegionStore(dir);
+		store.write(0, 0, 0, BlockStorage.pack(blocks(0)));
+		store.write(1, 0, 0, BlockStorage.pack(blocks(1)));
+		store.close();
+		long size = new File(dir, "r.0.0.dat").length();
+		for(int round = 0; round < 5; round++){
+			store = new RegionStore(dir); // the free ranges are found again from the table each time
+			for(int i = 0; i < 40; i++){
+				store.write(i%2, 0, 0, BlockStorage.pack(blocks(100 + round*40 + i)));
+			}
+			store.close();
+		}
+		long grown = new File(dir, "r.0.0.dat").length() - size;
+		assertTrue("region file grew by " + grown + " bytes", grown < size/2);
+		store = new RegionStore(dir);
+		assertArrayEquals(blocks(100 + 4*40 + 38), unpacked(store.read(0, 0, 0)));
+		assertArrayEquals(blocks(100 + 4*40 + 39), unpacked(store.read(1, 0, 0)));
+		store.close();
+	}
+
+	@Test
+	public void damagedPayloadReadsAsMissing() throws IOException {
+		File dir = folder.newFolder();
+		RegionStore store = new RegionStore(dir);
+		store.write(0, 0, 0, BlockStorage.pack(blocks(1)));
+		store.write(0, 1, 0, BlockStorage.pack(blocks(2)));
+		store.close();
+		RandomAccessFile f = new RandomAccessFile(new File(dir, "r.0.0.dat"), "rw");
+		f.seek(20);
+		int offset = f.readInt(); // the first chunk's entry
+		f.seek(offset + 10);
+		int b = f.read();
+		f.seek(offset + 10);
+		f.write(b ^ 0xFF);
+		f.close();
+		store = new RegionStore(dir);
+		assertNull(store.read(0, 0, 0));
+		assertNotNull(store.read(0, 1, 0));
+		assertTrue(store.report(), store.report().contains("1 damaged"));
+		store.close();
+	}
+
+	@Test
+	public void badHeaderIsMovedAside() throws IOException {
+		File dir = folder.newFolder();
+		byte[] old = blocks(3); // say a region file from another version
+		Files.write(new File(dir, "r.0.0.dat").toPath(), old);
+		RegionStore store = new RegionStore(dir);
+		assertNull(store.read(0, 0, 0));
+		store.write(0, 0, 0, BlockStorage.pack(blocks(4)));
+		store.close();
+		File bad = null;
+		for(File f : dir.listFiles()){
+			if(f.getName().startsWith("r.0.0.dat.") && f.getName().endsWith(".bad")){
+				bad = f;
+			}
+		}
+		assertNotNull("the old file is gone", bad);
+		assertArrayEquals(old, Files.readAllBytes(bad.toPath()));
+		store = new RegionStore(dir);
+		assertArrayEquals(blocks(4), unpacked(store.read(0, 0, 0)));
+		store.close();
+	}
+
+	@Test
+	public void entryPastTheEndReadsAsMissing() throws IOException {
+		File dir = folder.newFolder();
+		RegionStore store = new RegionStore(dir);
+		store.write(0, 0, 0, BlockStorage.pack(blocks(1)));
+		store.close();
+		RandomAccessFile f = new RandomAccessFile(new File(dir, "r.0.0.dat"), "rw");
+		f.setLength(f.length() - 1); // the entry was written but the end of its payload was not
+		f.close();
+		store = new RegionStore(dir);
+		assertNull(store.read(0, 0, 0));
+		store.write(0, 0, 0, BlockStorage.pack(blocks(2))); // and the chunk can be saved again
+		store.close();
+		store = new RegionStore(dir);
+		assertArrayEquals(blocks(2), unpacked(store.read(0, 0, 0)));
+		store.close();
+	}
+}
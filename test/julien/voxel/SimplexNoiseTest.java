@@ -0,0 +1,64 @@
+package julien.voxel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * The grid methods of SimplexNoise give the same values as sampling one point at a time.
+ * NoiseBenchmark measures how much faster they are.
+ */
+public class SimplexNoiseTest {
+	/** Samples along each axis */
+	private static final int N = 32;
+	/** Distance between samples */
+	private static final double STEP = 0.37;
+	/** Largest difference allowed, the grid methods only reorder floating point sums */
+	private static final double TOLERANCE = 1e-12;
+
+	@Test
+	public void grid2DMatchesScalar(){
+		double[] grid = new double[N*N];
+		for(int rep = 0; rep < 5; rep++){
+			double x0 = rep*7.3, y0 = -rep*3.1;
+			SimplexNoise.noise(grid, 0, x0, y0, STEP, STEP, N, N);
+			for(int i = 0; i < N; i++){
+				for(int j = 0; j < N; j++){
+					assertEquals(SimplexNoise.noise(x0 + i*STEP, y0 + j*STEP), grid[j*N + i], TOLERANCE);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void grid3DMatchesScalar(){
+		double[] grid = new double[N*N*N];
+		for(int rep = 0; rep < 5; rep++){
+			double x0 = rep*7.3, y0 = -rep*3.1, z0 = rep*1.7;
+			SimplexNoise.noise(grid, 0, x0, y0, z0, STEP, STEP, STEP, N, N, N);
+			for(int i = 0; i < N; i++){
+				for(int j = 0; j < N; j++){
+					for(int k = 0; k < N; k++){
+						assertEquals(SimplexNoise.noise(x0 + i*STEP, y0 + j*STEP, z0 + k*STEP), grid[(k*N + j)*N + i], TOLERANCE);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void grid4DMatchesScalar(){
+		double[] grid = new double[N*N*N];
+		for(int rep = 0; rep < 5; rep++){
+			double x0 = rep*7.3, y0 = -rep*3.1, z0 = rep*1.7, w0 = rep*0.9;
+			SimplexNoise.noise(grid, 0, x0, y0, z0, w0, STEP, STEP, STEP, STEP, N, N, N, 1);
+			for(int i = 0; i < N; i++){
+				for(int j = 0; j < N; j++){
+					for(int k = 0; k < N; k++){
+						assertEquals(SimplexNoise.noise(x0 + i*STEP, y0 + j*STEP, z0 + k*STEP, w0), grid[(k*N + j)*N + i], TOLERANCE);
+					}
+				}
+			}
+		}
+	}
+}
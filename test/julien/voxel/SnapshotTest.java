@@ -0,0 +1,116 @@
+package julien.voxel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The warm start snapshot, kept in a temporary folder: a damaged file is ignored and rebuilt, a starting area
+ * too big for one isn't kept, and any block edit deletes it, whether or not the run that made the edit keeps a
+ * snapshot itself.
+ */
+public class SnapshotTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File saved;
+	private long maxBytes;
+	private boolean persist, warmStart;
+
+	@Before
+	public void setUp() throws IOException {
+		GUI.drawDistance = 2;
+		GUI.fourD = false;
+		persist = GUI.persist;
+		warmStart = GUI.warmStart;
+		GUI.persist = false;
+		saved = ChunkManager.snapshotFile;
+		maxBytes = Snapshot.maxBytes;
+		ChunkManager.snapshotFile = new File(folder.getRoot(), "snapshot");
+	}
+
+	@After
+	public void tearDown(){
+		ChunkManager.snapshotFile = saved;
+		Snapshot.maxBytes = maxBytes;
+		GUI.persist = persist;
+		GUI.warmStart = warmStart;
+	}
+
+	/** Starts the way the program does, waiting for the initial chunks, and closes again */
+	private static void run(boolean warm){
+		GUI.warmStart = warm;
+		new ChunkManager(new RecordingBackend()).close();
+	}
+
+	@Test
+	public void damagedSnapshotIsRebuilt() throws IOException {
+		run(true);
+		RandomAccessFile raf = new RandomAccessFile(ChunkManager.snapshotFile, "rw");
+		try {
+			long at = raf.length() - 100; // in the last record, past the header
+			raf.seek(at);
+			int b = raf.read();
+			raf.seek(at);
+			raf.write(b ^ 0x10);
+		} finally {
+			raf.close();
+		}
+		GUI.warmStart = true;
+		ChunkManager manager = new ChunkManager(new RecordingBackend());
+		assertEquals("restored from a damaged snapshot", 0, manager.getRestored());
+		manager.close();
+		manager = new ChunkManager(new RecordingBackend());
+		assertTrue("snapshot not written again", manager.getRestored() > 0);
+		manager.close();
+	}
+
+	@Test
+	public void startingAreaOverTheCapGetsNoSnapshot() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(ChunkManager.snapshotFile, "rw");
+		try {
+			raf.writeInt(0); // an old file that doesn't match
+		} finally {
+			raf.close();
+		}
+		Snapshot.maxBytes = 1 << 10;
+		run(true);
+		assertFalse("snapshot written over the cap", ChunkManager.snapshotFile.exists());
+		Snapshot.maxBytes = maxBytes;
+		run(true);
+		assertTrue(ChunkManager.snapshotFile.isFile());
+	}
+
+	@Test
+	public void editWithoutWarmStartDeletesSnapshot(){
+		run(true);
+		assertTrue(ChunkManager.snapshotFile.isFile());
+		GUI.warmStart = false;
+		ChunkManager manager = new ChunkManager(new RecordingBackend());
+		assertTrue(manager.setBlock(5, ChunkManagerTest.surface(manager, 5, 6), 6, (byte) 0));
+		assertFalse("snapshot kept after an edit", ChunkManager.snapshotFile.exists());
+		manager.close();
+		assertFalse(ChunkManager.snapshotFile.exists());
+	}
+
+	@Test
+	public void editDeletesSnapshotBeforeClosing(){
+		run(true);
+		GUI.warmStart = true;
+		ChunkManager manager = new ChunkManager(new RecordingBackend());
+		assertTrue(manager.getRestored() > 0);
+		assertTrue(manager.setBlock(5, ChunkManagerTest.surface(manager, 5, 6), 6, (byte) 0));
+		assertFalse("snapshot kept after an edit", ChunkManager.snapshotFile.exists());
+		manager.close();
+		assertFalse(ChunkManager.snapshotFile.exists());
+	}
+}